@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.impl.SegmentedKeyValueStore;
+
+/**
+ * Creates the store properties for a benchmark trial in a fresh temporary directory. The implementation names are the
+ * ones understood by {@link StoreFactory}, "segmented-mmap" selects the segmented store with memory mapped reads.
+ */
+class BenchmarkStores {
+
+    private final Path directory;
+    private final Properties properties = new Properties();
+
+    BenchmarkStores(String implementation) throws IOException {
+        directory = Files.createTempDirectory("prefect-benchmark");
+        properties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, directory.toAbsolutePath().toString());
+        if (implementation.equals("segmented-mmap")) {
+            properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, "segmented");
+            properties.setProperty(SegmentedKeyValueStore.STORE_READ_MMAP_KEY, "true");
+        } else {
+            properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, implementation);
+        }
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * Raw {@link KeyValueStore} operations, without the object layer on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyValueStoreBenchmark {
+
+    private static final int KEYS = 10000;
+
+    @Param({ "filesystem", "segmented", "segmented-mmap" })
+    public String implementation;
+
+    @Param({ "64", "4096" })
+    public int valueSize;
+
+    private BenchmarkStores stores;
+    private KeyValueStore store;
+    private Value value;
+    private Key[] keys;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, StoreException {
+        stores = new BenchmarkStores(implementation);
+        store = StoreFactory.createKeyValueStore(stores.getProperties());
+        if (store == null) {
+            throw new IllegalStateException("Cannot create store " + implementation);
+        }
+        byte[] data = new byte[valueSize];
+        random = new Random(42);
+        random.nextBytes(data);
+        value = new Value(data);
+        keys = new Key[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = store.add(value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, StoreException {
+        store.shutdown();
+        stores.delete();
+    }
+
+    @Benchmark
+    public Key add() throws StoreException {
+        return store.add(value);
+    }
+
+    @Benchmark
+    public Value read() throws StoreException {
+        return store.read(keys[random.nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    public void write() throws StoreException {
+        store.write(keys[random.nextInt(KEYS)], value);
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.benchmark;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.fluffypaws.prefect.api.ImmutableObject;
+import io.fluffypaws.prefect.api.Object;
+import io.fluffypaws.prefect.api.ObjectStore;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.impl.ObjectStoreImpl;
+
+/**
+ * {@link ObjectStore} hot paths on an object that already carries {@link #patches} patches: writes (addChild,
+ * setValue) are measured as throughput, reads of the latest and of a historical version as average time.
+ *
+ * With {@link #cache} set to false the object cache is disabled, so every read decodes the object from the
+ * {@link io.fluffypaws.prefect.api.KeyValueStore}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectStoreBenchmark {
+
+    @Param({ "filesystem", "segmented", "segmented-mmap" })
+    public String implementation;
+
+    @Param({ "10", "1000", "100000" })
+    public int patches;
+
+    @Param({ "true", "false" })
+    public boolean cache;
+
+    private BenchmarkStores stores;
+    private ObjectStore store;
+    private Object object;
+    private Stamp middle;
+    private Value value;
+    private Random random;
+    private long added;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, StoreException {
+        stores = new BenchmarkStores(implementation);
+        if (!cache) {
+            stores.getProperties().setProperty(ObjectStoreImpl.STORE_CACHE_SIZE_KEY, "0");
+        }
+        store = StoreFactory.createObjectStore(stores.getProperties());
+        if (store == null) {
+            throw new IllegalStateException("Cannot create store " + implementation);
+        }
+        value = new Value(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        object = store.getRoot().addChild("object", value);
+        for (int i = 0; i < patches; i++) {
+            object.addChild(String.valueOf(i), null);
+            if (i == patches / 2) {
+                middle = object.getStamp();
+            }
+        }
+        random = new Random(42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, StoreException {
+        store.getKeyValueStore().shutdown();
+        stores.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Object addChild() throws StoreException {
+        return object.addChild("added" + added++, null);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void setValue() throws StoreException {
+        object.setValue(value);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Object getChild() throws StoreException {
+        return object.getChild(String.valueOf(random.nextInt(patches)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Value getValue() throws StoreException {
+        return object.getValue();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ImmutableObject getChildHistorical() throws StoreException {
+        return object.get(middle).getChild(String.valueOf(random.nextInt(patches / 2)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int getChildNames() throws StoreException {
+        int count = 0;
+        for (Iterator<String> names = object.getChildNames(); names.hasNext(); names.next()) {
+            count++;
+        }
+        return count;
+    }
+
+}
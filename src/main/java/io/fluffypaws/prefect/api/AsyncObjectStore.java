@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads objects of an {@link ObjectStore} without waiting for the {@link KeyValueStore}, so that independent reads are
+ * executed concurrently. The objects the futures complete with are the same as the ones the blocking methods return.
+ *
+ * Futures fail with the {@link StoreException} of the read. Dependent stages may run on the I/O threads of the
+ * store, so they should not block, for example by calling the blocking methods of the objects.
+ */
+public interface AsyncObjectStore {
+
+    CompletableFuture<Object> getRoot();
+
+    CompletableFuture<Object> get(Key key);
+
+    /**
+     * @return the child with the given name of the object with the parent key, or null if there is no such child
+     */
+    CompletableFuture<Object> getChild(Key parent, String name);
+
+    /**
+     * @return the current value of the object with the given key
+     */
+    CompletableFuture<Value> getValue(Key key);
+
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.api;
+
+import java.util.List;
+
+/**
+ * Builds large trees of new objects. Values are written as they are added, but only the names and keys of the objects
+ * are kept in memory until commit. Every new object is then written once with all its children, and the objects are
+ * only attached to the existing tree after all of them have been written, so readers see either all or none of them.
+ * The new objects share a single creation stamp.
+ *
+ * Objects can be added in any order as long as the parent of an object is added before the object itself.
+ */
+public interface BulkLoader {
+
+    /**
+     * Adds a new object.
+     * @param parent NonNull, the names of the ancestors below the object the load started at, empty for its children.
+     *               The parent is either an existing object or an object added to this loader before.
+     * @param name NonNull
+     * @param value the initial value of the object
+     * @throws IllegalArgumentException when the parent already has a child with the name in this loader
+     */
+    void add(List<String> parent, String name, Value value) throws StoreException, IllegalArgumentException;
+
+    /**
+     * Writes all added objects and attaches them to the existing tree. A loader can only be committed or rolled back
+     * once.
+     * @throws IllegalStateException when the loader was already committed or rolled back
+     */
+    void commit() throws StoreException, IllegalStateException;
+
+    /**
+     * Discards all added objects.
+     * @throws IllegalStateException when the loader was already committed or rolled back
+     */
+    void rollback() throws IllegalStateException;
+
+}
@@ -18,20 +18,43 @@ package io.fluffypaws.prefect.api;
 
 import java.io.Serializable;
 
-public class Key implements Serializable {
+/**
+ * Identifies a value in a {@link KeyValueStore}. Keys are allocated by the store and are non-negative numbers, so they
+ * can be used directly as primitive longs by the stores and as keys of hash maps.
+ */
+public final class Key implements Serializable, Comparable<Key> {
+
+    private final long value;
+
+    public Key(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Keys cannot be negative: " + value);
+        }
+        this.value = value;
+    }
 
-    private byte[] data;
+    public long toLong() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(java.lang.Object o) {
+        return o instanceof Key && ((Key)o).value == value;
+    }
 
-    public Key(byte[] data) {
-        this.data = data;
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
     }
 
-    public byte[] getData() {
-        return data;
+    @Override
+    public int compareTo(Key other) {
+        return Long.compare(value, other.value);
     }
 
-    public void setData(byte[] data) {
-        this.data = data;
+    @Override
+    public String toString() {
+        return String.valueOf(value);
     }
 
-}
\ No newline at end of file
+}
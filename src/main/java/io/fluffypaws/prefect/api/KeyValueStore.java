@@ -17,9 +17,15 @@
 package io.fluffypaws.prefect.api;
 
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 /**
  * General note: return values are _always_ fetched from the underlying physical store and are _never_ cached.
+ *
+ * The asynchronous methods return right away, the future completes with the result of the blocking method or fails
+ * with its {@link StoreException}. Dependent stages may run on the I/O threads of the store, so they should not block.
+ * Their number is set with {@link StoreFactory#STORE_ASYNC_THREADS_KEY}.
  */
 public interface KeyValueStore {
 
@@ -50,6 +56,28 @@ public interface KeyValueStore {
      */
     void write(Key key, Value value) throws StoreException;
 
+    /**
+     * Adds a value to the store without waiting for it, see {@link #add(Value)}
+     * @param value NonNull
+     * @return the key for the newly added value
+     */
+    CompletableFuture<Key> addAsync(Value value);
+
+    /**
+     * Retrieves the Value corresponding with the key without waiting for it, see {@link #read(Key)}. Reads that are
+     * started together are executed concurrently.
+     * @param key NonNull
+     * @return the value or null if not found
+     */
+    CompletableFuture<Value> readAsync(Key key);
+
+    /**
+     * Writes a value pair to the store without waiting for it, see {@link #write(Key, Value)}
+     * @param key NonNull
+     * @param value NonNull
+     */
+    CompletableFuture<Void> writeAsync(Key key, Value value);
+
     /**
      * Deletes a key
      * @param key NonNull
@@ -57,6 +85,35 @@ public interface KeyValueStore {
      */
     void delete(Key key) throws StoreException, IllegalArgumentException;
 
+    /**
+     * Returns a key below which every key that will be allocated later is higher: the highest key allocated so far for
+     * a store that allocates in order, a store that allocates from several ranges at once may already have allocated
+     * higher keys.
+     */
+    Key getHighestKey();
+
+    /**
+     * Reclaims the space of overwritten and deleted values, and deletes the keys up to and including the horizon for
+     * which live returns false. Keys above the horizon are never deleted. Runs concurrently with reads and writes, its
+     * I/O is limited to {@link StoreFactory#STORE_COMPACTOR_RATE_KEY} bytes per second.
+     * @param horizon NonNull
+     * @param live NonNull
+     */
+    void compact(Key horizon, Predicate<Key> live) throws StoreException;
+
+    /**
+     * Creates a batch that writes several values to the store at once. Batches that are committed concurrently may be
+     * written (and synced) together.
+     * @return a new, empty batch
+     */
+    WriteBatch createWriteBatch();
+
+    /**
+     * Makes everything written so far durable and releases the resources of the store, the store cannot be used
+     * afterwards. A store opened later in the same directory continues where this one left off.
+     */
+    void shutdown() throws StoreException;
+
     /**
      * Creates a new Stamp
      * @return a new Stamp
@@ -20,5 +20,11 @@ public class KeyValueStoreStatistics {
 
     public long totalBytesWritten;
     public long totalWrites;
+    public long totalCommits;
+    public long totalSyncs;
+    public long totalBytesReclaimed;
+    // values that were compressed before and after compressing, the ratio is the second divided by the first
+    public long totalBytesUncompressed;
+    public long totalBytesCompressed;
 
 }
\ No newline at end of file
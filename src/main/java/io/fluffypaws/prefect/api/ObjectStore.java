@@ -16,8 +16,12 @@
 
 package io.fluffypaws.prefect.api;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
- * General note: return values are _always_ fetched from the underlying physical store and are _never_ cached.
+ * General note: objects may be served from a bounded cache of decoded objects, which is kept up to date with the
+ * changes made through this store. Changes made to the underlying {@link KeyValueStore} directly are not seen.
  */
 public interface ObjectStore {
 
@@ -25,6 +29,78 @@ public interface ObjectStore {
 
     Object get(Key key) throws StoreException;
 
+    /**
+     * Reads the object with the given key and its descendants up to the given depth at once, the children of every
+     * object are read concurrently. The returned object and its descendants up to the depth are held in memory and
+     * can be walked without further I/O, deeper descendants are read when they are asked for.
+     * @param key NonNull
+     * @param stamp the stamp to read the subtree at, which gives a consistent view of it, or null for the current
+     *              state of every object
+     * @param depth 0 reads only the object itself, 1 also its children and so on
+     * @return the object, or null if it did not exist at the stamp
+     */
+    ImmutableObject prefetch(Key key, Stamp stamp, int depth) throws StoreException;
+
+    /**
+     * Starts a transaction, see {@link Transaction}.
+     * @return a new transaction without changes
+     */
+    Transaction beginTransaction();
+
+    /**
+     * Starts loading new objects below the object with the given key, see {@link BulkLoader}.
+     * @param key NonNull
+     * @return a new loader without objects
+     */
+    BulkLoader beginBulkLoad(Key key);
+
+    /**
+     * Writes the object with the given key and all its descendants, as they were at the stamp, to a checksummed dump
+     * in one sequential pass. Writers are not blocked and do not show up in the dump. Memory use depends on the depth
+     * of the tree and the number of children per object, not on its size. The stream is flushed but not closed.
+     * @param key NonNull
+     * @param stamp the stamp to dump the subtree at, null for now. Its history must not be pruned while dumping.
+     * @return the number of objects written
+     */
+    long exportDump(Key key, Stamp stamp, OutputStream out) throws StoreException;
+
+    /**
+     * Reads a dump written by {@link #exportDump(Key, Stamp, OutputStream)} and adds its objects below the object with
+     * the given key with a {@link BulkLoader}. The value of the dumped object itself, if any, is set on that object.
+     * Nothing is added if the dump is corrupt. The stream is not closed.
+     * @param key NonNull
+     * @return the number of objects read, including the dumped object itself
+     */
+    long importDump(Key key, InputStream in) throws StoreException;
+
     KeyValueStore getKeyValueStore();
 
+    /**
+     * Returns the non-blocking reads of this store, see {@link AsyncObjectStore}.
+     */
+    AsyncObjectStore getAsyncObjectStore();
+
+    /**
+     * Reclaims the space of everything that can no longer be reached from the root: deleted objects, replaced values
+     * and history from before the retention stamp. Runs concurrently with reads and writes. Afterwards views at stamps
+     * before the retention stamp may fail.
+     * @param retention the earliest stamp at which the history must stay readable, null keeps all history
+     */
+    void compact(Stamp retention) throws StoreException;
+
+    /**
+     * Collapses the history of every object before the retention stamp into the state at that stamp, so that reading
+     * an object replays only the changes made since, and compacts to reclaim the space of the older history. Views at
+     * stamps before the retention stamp cannot be read afterwards.
+     * @param retention NonNull, for example {@link KeyValueStore#calculateSnapshotStamp(java.time.Instant)} of the
+     *                  oldest moment that must stay readable
+     */
+    void prune(Stamp retention) throws StoreException;
+
+    /**
+     * Returns current statistics of this store
+     * @return
+     */
+    ObjectStoreStatistics getStatistics();
+
 }
\ No newline at end of file
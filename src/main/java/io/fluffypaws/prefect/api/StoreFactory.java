@@ -19,15 +19,33 @@ package io.fluffypaws.prefect.api;
 import java.util.Properties;
 
 import io.fluffypaws.prefect.impl.CassandraKeyValueStore;
+import io.fluffypaws.prefect.impl.CompressingKeyValueStore;
 import io.fluffypaws.prefect.impl.FileSystemKeyValueStore;
 import io.fluffypaws.prefect.impl.ObjectStoreImpl;
+import io.fluffypaws.prefect.impl.SegmentedKeyValueStore;
 
 public class StoreFactory {
 
     public static final String STORE_DIRECTORY_KEY = "store.directory";
     public static final String STORE_IMPLEMENTATION = "store.implementation";
+    public static final String STORE_SYNC_KEY = "store.sync";
+    public static final String STORE_COMPACTOR_RATE_KEY = "store.compactor.rate";
+    public static final String STORE_ASYNC_THREADS_KEY = "store.async.threads";
 
     public static KeyValueStore createKeyValueStore(Properties properties) {
+        KeyValueStore keyValueStore = createPhysicalKeyValueStore(properties);
+        if (keyValueStore == null || !CompressingKeyValueStore.isEnabled(properties)) {
+            return keyValueStore;
+        }
+
+        CompressingKeyValueStore compressingKeyValueStore = new CompressingKeyValueStore();
+        if (!compressingKeyValueStore.initialize(properties, keyValueStore)) {
+            return null;
+        }
+        return compressingKeyValueStore;
+    }
+
+    private static KeyValueStore createPhysicalKeyValueStore(Properties properties) {
         final String implementation = properties.getProperty(STORE_IMPLEMENTATION, "filesystem");
 
         switch (implementation) {
@@ -37,6 +55,12 @@ public class StoreFactory {
                     return null;
                 }
                 return fileSystemKeyValueStore;
+            case "segmented":
+                SegmentedKeyValueStore segmentedKeyValueStore = new SegmentedKeyValueStore();
+                if (!segmentedKeyValueStore.initialize(properties)) {
+                    return null;
+                }
+                return segmentedKeyValueStore;
             case "cassandra":
                 CassandraKeyValueStore cassandraKeyValueStore = new CassandraKeyValueStore();
                 if (!cassandraKeyValueStore.initialize(properties)) {
@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.api;
+
+/**
+ * Groups changes to any number of objects. Objects obtained through a transaction stage their changes in memory and see
+ * their own uncommitted changes, other readers only see them once the transaction is committed. All changes are then
+ * written in one {@link WriteBatch} and share a single stamp, so a historical view sees either all or none of them.
+ *
+ * Objects created in a transaction have no creation stamp until the transaction is committed.
+ */
+public interface Transaction {
+
+    Object getRoot() throws StoreException;
+
+    Object get(Key key) throws StoreException;
+
+    /**
+     * Applies all staged changes. A transaction can only be committed or rolled back once.
+     * @throws IllegalStateException when the transaction was already committed or rolled back
+     */
+    void commit() throws StoreException, IllegalStateException;
+
+    /**
+     * Discards all staged changes.
+     * @throws IllegalStateException when the transaction was already committed or rolled back
+     */
+    void rollback() throws IllegalStateException;
+
+}
@@ -16,9 +16,17 @@
 
 package io.fluffypaws.prefect.api;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A value is either backed by a byte array or by a (read-only) buffer, for instance a slice of a memory mapped file.
+ * {@link #getData()} copies a buffer backed value onto the heap the first time it is called, use {@link #getBuffer()}
+ * to access the contents without copying.
+ */
 public class Value {
 
     private byte[] data;
+    private ByteBuffer buffer;
 
     public Value() {
         this.data = new byte[0];
@@ -28,16 +36,40 @@ public class Value {
         this.data = data;
     }
 
+    public Value(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
     public boolean isEmpty() {
-        return data.length == 0;
+        return getLength() == 0;
+    }
+
+    public int getLength() {
+        return data != null ? data.length : buffer.remaining();
     }
 
     public byte[] getData() {
+        if (data == null) {
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+        }
         return data;
     }
 
     public void setData(byte[] data) {
         this.data = data;
+        this.buffer = null;
+    }
+
+    /**
+     * Returns a read-only view of the contents of this value, positioned at the first byte.
+     * @return a read-only view of the contents of this value
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer != null) {
+            return buffer.asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
-}
\ No newline at end of file
+}
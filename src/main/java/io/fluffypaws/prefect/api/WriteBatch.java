@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.api;
+
+/**
+ * Collects the adds and writes of one logical change to a {@link KeyValueStore}. Nothing is written to the store
+ * until {@link #commit()} is called, after which all values are visible. Writing the same key more than once in a
+ * batch only writes the last value.
+ */
+public interface WriteBatch {
+
+    /**
+     * Adds a value to the batch, the key is allocated immediately so it can be referred to by later values in the batch
+     * @param value NonNull
+     * @return the key for the newly added value
+     */
+    Key add(Value value) throws StoreException;
+
+    /**
+     * Writes a value pair to the batch
+     * @param key NonNull
+     * @param value NonNull
+     */
+    void write(Key key, Value value) throws StoreException;
+
+    /**
+     * Writes all values in the batch to the store. A batch can only be committed once.
+     * @throws IllegalStateException when the batch was already committed
+     */
+    void commit() throws StoreException, IllegalStateException;
+
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.util.concurrent.CompletableFuture;
+
+import io.fluffypaws.prefect.api.AsyncObjectStore;
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.Object;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * Reads objects through {@link ObjectStoreImpl#readHistoryStoreAsync(Key)}, objects that are cached complete right
+ * away.
+ */
+class AsyncObjectStoreImpl implements AsyncObjectStore {
+
+    private final ObjectStoreImpl objectStore;
+
+    AsyncObjectStoreImpl(final ObjectStoreImpl objectStore) {
+        this.objectStore = objectStore;
+    }
+
+    public CompletableFuture<Object> getRoot() {
+        return get(objectStore.getKeyValueStore().getFirstKey());
+    }
+
+    public CompletableFuture<Object> get(final Key key) {
+        return ObjectImpl.readAsync(objectStore, key).thenApply(object -> object);
+    }
+
+    public CompletableFuture<Object> getChild(final Key parent, final String name) {
+        return ObjectImpl.readAsync(objectStore, parent).thenCompose(object -> object.getChildAsync(name));
+    }
+
+    public CompletableFuture<Value> getValue(final Key key) {
+        return ObjectImpl.readAsync(objectStore, key).thenCompose(ObjectImpl::getValueAsync);
+    }
+
+}
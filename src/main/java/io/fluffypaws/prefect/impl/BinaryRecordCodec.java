@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * Version 1 of the record format. All integers are unsigned LEB128 varints (signed ones are zigzag encoded first),
+ * nullable byte sequences are prefixed with their length + 1 so that 0 means null.
+ *
+ * - object record:  version, type, history, snapshot (only for type Snapshot)
+ * - history:        stamp, value (nullable bytes), next (nullable key)
+ * - snapshot:       stamp, value key (nullable), count, count * (child name, key), previous record (nullable key)
+ * - patch block:    version, previous block (nullable key), count, count * (type, stamp, child name (nullable UTF-8), key (nullable))
+ * - stamp:          epoch seconds (zigzag), nanos
+ */
+class BinaryRecordCodec implements RecordCodec {
+
+    private static Logger log = LoggerFactory.getLogger(BinaryRecordCodec.class);
+
+    static final byte VERSION = 2;
+
+    private static final ObjectImpl.ObjectHistoryStoreType[] OBJECT_TYPES = ObjectImpl.ObjectHistoryStoreType.values();
+    private static final ObjectImpl.PatchType[] PATCH_TYPES = ObjectImpl.PatchType.values();
+
+    private static final class Output {
+        private byte[] bytes = new byte[64];
+        private int size = 0;
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte)b;
+        }
+
+        void writeVarLong(long l) {
+            ensure(10);
+            while ((l & ~0x7FL) != 0) {
+                bytes[size++] = (byte)((l & 0x7F) | 0x80);
+                l >>>= 7;
+            }
+            bytes[size++] = (byte)l;
+        }
+
+        void writeNullableBytes(ByteBuffer buffer) {
+            if (buffer == null) {
+                writeVarLong(0);
+                return;
+            }
+            int length = buffer.remaining();
+            writeVarLong(length + 1);
+            ensure(length);
+            buffer.get(bytes, size, length);
+            size += length;
+        }
+
+        Value toValue() {
+            return new Value(Arrays.copyOf(bytes, size));
+        }
+    }
+
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) throws StoreException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new StoreException("Malformed varint in record");
+    }
+
+    private static int readLength(ByteBuffer buffer) throws StoreException {
+        long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining() + 1L) {
+            throw new StoreException("Invalid length " + length + " in record");
+        }
+        return (int)length;
+    }
+
+    /**
+     * Returns a slice of the next nullable byte sequence, or null; the slice shares the contents of the buffer.
+     */
+    private static ByteBuffer readNullableBytes(ByteBuffer buffer) throws StoreException {
+        int length = readLength(buffer);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer slice = buffer.slice();
+        ((Buffer)slice).limit(length - 1);
+        ((Buffer)buffer).position(buffer.position() + length - 1);
+        return slice;
+    }
+
+    private static void writeStamp(Output out, Stamp stamp) {
+        Instant instant = ((TrivialStampGenerator.StampImpl)stamp).instant;
+        long seconds = instant.getEpochSecond();
+        out.writeVarLong((seconds << 1) ^ (seconds >> 63));
+        out.writeVarLong(instant.getNano());
+    }
+
+    private static Stamp readStamp(ByteBuffer buffer) throws StoreException {
+        long zigzag = readVarLong(buffer);
+        long seconds = (zigzag >>> 1) ^ -(zigzag & 1);
+        long nanos = readVarLong(buffer);
+        return new TrivialStampGenerator.StampImpl(Instant.ofEpochSecond(seconds, nanos));
+    }
+
+    private static void writeKey(Output out, Key key) {
+        out.writeVarLong(key == null ? 0 : key.toLong() + 1);
+    }
+
+    private static Key readKey(ByteBuffer buffer) throws StoreException {
+        long l = readVarLong(buffer);
+        if (l == 0) {
+            return null;
+        }
+        if (l < 0) {
+            throw new StoreException("Invalid key " + (l - 1) + " in record");
+        }
+        return new Key(l - 1);
+    }
+
+    private static void writeString(Output out, String string) {
+        out.writeNullableBytes(string == null ? null : ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String readString(ByteBuffer buffer) throws StoreException {
+        ByteBuffer bytes = readNullableBytes(buffer);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static void readVersion(ByteBuffer buffer) throws StoreException {
+        byte version = buffer.get();
+        if (version != VERSION) {
+            String message = "Unsupported record version " + version;
+            log.error(message);
+            throw new StoreException(message);
+        }
+    }
+
+    private static <T> T readEnum(ByteBuffer buffer, T[] values) throws StoreException {
+        int ordinal = buffer.get();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new StoreException("Invalid type " + ordinal + " in record");
+        }
+        return values[ordinal];
+    }
+
+    public Value encodeObject(final ObjectImpl.ObjectHistoryStoreType type, final ObjectImpl.History history, final ObjectImpl.Snapshot snapshot) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        out.writeByte(type.ordinal());
+        writeStamp(out, history.stamp);
+        out.writeNullableBytes(history.value == null ? null : history.value.getBuffer());
+        writeKey(out, history.next);
+        if (type == ObjectImpl.ObjectHistoryStoreType.Snapshot) {
+            writeStamp(out, snapshot.stamp);
+            writeKey(out, snapshot.valueKey);
+            out.writeVarLong(snapshot.children.size());
+            for (Map.Entry<String, Key> child : snapshot.children.entrySet()) {
+                writeString(out, child.getKey());
+                writeKey(out, child.getValue());
+            }
+            writeKey(out, snapshot.previous);
+        }
+        return out.toValue();
+    }
+
+    public ObjectImpl.ObjectHistoryStoreType decodeObjectType(final ByteBuffer buffer) throws StoreException {
+        try {
+            readVersion(buffer);
+            return readEnum(buffer, OBJECT_TYPES);
+        } catch (BufferUnderflowException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    public ObjectImpl.History decodeHistory(final ByteBuffer buffer) throws StoreException {
+        try {
+            ObjectImpl.History history = new ObjectImpl.History();
+            history.stamp = readStamp(buffer);
+            ByteBuffer value = readNullableBytes(buffer);
+            history.value = value == null ? null : new Value(value);
+            history.next = readKey(buffer);
+            return history;
+        } catch (BufferUnderflowException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    public ObjectImpl.Snapshot decodeSnapshot(final ByteBuffer buffer) throws StoreException {
+        try {
+            ObjectImpl.Snapshot snapshot = new ObjectImpl.Snapshot();
+            snapshot.stamp = readStamp(buffer);
+            snapshot.valueKey = readKey(buffer);
+            int count = readLength(buffer);
+            snapshot.children = new LinkedHashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                String name = readString(buffer);
+                snapshot.children.put(name, readKey(buffer));
+            }
+            snapshot.previous = readKey(buffer);
+            return snapshot;
+        } catch (BufferUnderflowException e) {
+            throw new StoreException(e);
+        }
+    }
+
+    public Value encodePatchBlock(final Key previous, final List<ObjectImpl.Patch> patches) {
+        Output out = new Output();
+        out.writeByte(VERSION);
+        writeKey(out, previous);
+        out.writeVarLong(patches.size());
+        for (ObjectImpl.Patch patch : patches) {
+            out.writeByte(patch.type.ordinal());
+            writeStamp(out, patch.stamp);
+            writeString(out, patch.childName);
+            writeKey(out, patch.key);
+        }
+        return out.toValue();
+    }
+
+    public ObjectImpl.PatchBlock decodePatchBlock(final ByteBuffer buffer) throws StoreException {
+        try {
+            readVersion(buffer);
+            Key previous = readKey(buffer);
+            int count = readLength(buffer);
+            ArrayList<ObjectImpl.Patch> patches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ObjectImpl.PatchType type = readEnum(buffer, PATCH_TYPES);
+                Stamp stamp = readStamp(buffer);
+                String childName = readString(buffer);
+                Key key = readKey(buffer);
+                patches.add(new ObjectImpl.Patch(stamp, type, childName, key));
+            }
+            return new ObjectImpl.PatchBlock(previous, patches);
+        } catch (BufferUnderflowException e) {
+            throw new StoreException(e);
+        }
+    }
+
+}
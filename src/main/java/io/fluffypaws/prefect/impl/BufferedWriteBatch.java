@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.impl;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * {@link WriteBatch} that keeps its values in memory until it is committed, the store it belongs to allocates the keys
+ * and writes the batch through a {@link GroupCommit}.
+ */
+class BufferedWriteBatch implements WriteBatch {
+
+    interface Target {
+        Key allocateKey();
+        GroupCommit getGroupCommit();
+    }
+
+    static class Write {
+        final Key key;
+        Value value;
+        final boolean added;
+        Write(final Key key, final Value value, final boolean added) {
+            this.key = key;
+            this.value = value;
+            this.added = added;
+        }
+    }
+
+    private final Target target;
+    private final LinkedHashMap<Key, Write> writes = new LinkedHashMap<>();
+    private boolean committed = false;
+
+    // set by the group commit once the batch has been written
+    boolean done = false;
+    StoreException failure;
+
+    BufferedWriteBatch(final Target target) {
+        this.target = target;
+    }
+
+    public Key add(final Value value) throws StoreException {
+        Key key = target.allocateKey();
+        writes.put(key, new Write(key, value, true));
+        return key;
+    }
+
+    public void write(final Key key, final Value value) throws StoreException {
+        Write write = writes.get(key);
+        if (write != null) {
+            write.value = value;
+        } else {
+            writes.put(key, new Write(key, value, false));
+        }
+    }
+
+    public void commit() throws StoreException, IllegalStateException {
+        if (committed) {
+            throw new IllegalStateException("Batch was already committed");
+        }
+        committed = true;
+        if (!writes.isEmpty()) {
+            target.getGroupCommit().commit(this);
+        }
+    }
+
+    Collection<Write> getWrites() {
+        return writes.values();
+    }
+
+}
@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import io.fluffypaws.prefect.api.BulkLoader;
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.Object;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * Writes the value of every new object as soon as it is added, and collects the new objects as a tree of names and
+ * value keys in memory. On commit every new object is written bottom up, so that the keys of its children are known,
+ * as a snapshot with all its children, see {@link ObjectImpl.ObjectPlusPatchesStore#createWithChildren}. The records
+ * are committed in batches of {@link ObjectStoreImpl#STORE_BULK_BATCH_SIZE_KEY}, which the store appends in the order
+ * of their keys.
+ *
+ * Nothing refers to the new objects until the last batch, which adds them as children of the existing objects under
+ * the write locks of those objects, like a {@link TransactionImpl}. The loader pins its keys against the
+ * {@link Compactor} until then, the values of a loader that is rolled back are reclaimed by the next compaction.
+ */
+class BulkLoaderImpl implements BulkLoader {
+
+    private static class Node {
+        final Key valueKey;
+        LinkedHashMap<String, Node> children;
+        Key key;
+        Node(final Key valueKey) {
+            this.valueKey = valueKey;
+        }
+    }
+
+    /**
+     * Parent of added objects: a new object, or else an existing object.
+     */
+    private static class Parent {
+        final Node node;
+        final Key key;
+        Parent(final Node node, final Key key) {
+            this.node = node;
+            this.key = key;
+        }
+    }
+
+    private final ObjectStoreImpl objectStore;
+    private final KeyValueStore store;
+    private final Key top;
+    private final Compactor.Pin pin;
+    // new objects that are children of existing objects, by the key of the existing object
+    private final LinkedHashMap<Key, LinkedHashMap<String, Node>> attached = new LinkedHashMap<>();
+    // parents are mostly the same for consecutive objects
+    private List<String> lastPath;
+    private Parent lastParent;
+    private WriteBatch batch;
+    private int batched;
+    // values that can be deduplicated against once the load is committed
+    private final List<ValueDeduplicator.Added> added = new ArrayList<>();
+    private boolean open = true;
+
+    BulkLoaderImpl(final ObjectStoreImpl objectStore, final Key top) {
+        this.objectStore = objectStore;
+        this.store = objectStore.getKeyValueStore();
+        this.top = top;
+        this.pin = objectStore.getCompactor().pin();
+        this.batch = store.createWriteBatch();
+    }
+
+    private void checkOpen() throws IllegalStateException {
+        if (!open) {
+            throw new IllegalStateException("Bulk load was already committed or rolled back");
+        }
+    }
+
+    private Parent resolve(final List<String> path) throws StoreException {
+        if (path.equals(lastPath)) {
+            return lastParent;
+        }
+        Node node = null;
+        Key key = top;
+        for (String name : path) {
+            Map<String, Node> children = node == null ? attached.get(key) : node.children;
+            Node child = children == null ? null : children.get(name);
+            if (child != null) {
+                node = child;
+            } else if (node == null) {
+                Object existing = ObjectImpl.read(objectStore, key).getChild(name);
+                if (existing == null) {
+                    throw new StoreException("Cannot find parent " + path + " below " + top);
+                }
+                key = existing.getKey();
+            } else {
+                throw new StoreException("Cannot find parent " + path + " below " + top);
+            }
+        }
+        lastPath = new ArrayList<>(path);
+        lastParent = new Parent(node, key);
+        return lastParent;
+    }
+
+    public void add(final List<String> parent, final String name, final Value value) throws StoreException, IllegalArgumentException {
+        checkOpen();
+        Parent resolved = resolve(parent);
+        Map<String, Node> children;
+        if (resolved.node != null) {
+            if (resolved.node.children == null) {
+                resolved.node.children = new LinkedHashMap<>();
+            }
+            children = resolved.node.children;
+        } else {
+            children = attached.computeIfAbsent(resolved.key, k -> new LinkedHashMap<>());
+        }
+        if (children.containsKey(name)) {
+            throw new IllegalArgumentException("Child " + name + " of " + parent + " was already added");
+        }
+        Key valueKey = null;
+        if (value != null) {
+            valueKey = objectStore.addValue(value, batch, pin, added);
+            written();
+        }
+        children.put(name, new Node(valueKey));
+    }
+
+    /**
+     * Writes the node after its children.
+     */
+    private void write(final Node node, final Stamp stamp) throws StoreException {
+        LinkedHashMap<String, Key> children = new LinkedHashMap<>();
+        if (node.children != null) {
+            for (Map.Entry<String, Node> child : node.children.entrySet()) {
+                write(child.getValue(), stamp);
+                children.put(child.getKey(), child.getValue().key);
+            }
+            // the children are written, only their keys are needed from now on
+            node.children = null;
+        }
+        node.key = ObjectImpl.ObjectPlusPatchesStore.createWithChildren(objectStore, node.valueKey, stamp, children, batch);
+        written();
+    }
+
+    /**
+     * Commits the batch once it is full.
+     */
+    private void written() throws StoreException {
+        if (++batched >= objectStore.getBulkBatchSize()) {
+            batch.commit();
+            batch = store.createWriteBatch();
+            batched = 0;
+        }
+    }
+
+    public void commit() throws StoreException, IllegalStateException {
+        checkOpen();
+        open = false;
+        lastParent = null;
+
+        try {
+            Stamp creation = store.generateStamp();
+            for (LinkedHashMap<String, Node> children : attached.values()) {
+                for (Node node : children.values()) {
+                    write(node, creation);
+                }
+            }
+
+            List<ReadWriteLock> locks = objectStore.getLocks(attached.keySet());
+            for (ReadWriteLock lock : locks) {
+                lock.writeLock().lock();
+            }
+            try {
+                Stamp stamp = store.generateStamp();
+                List<ObjectImpl.ObjectHistoryStore> changed = new ArrayList<>(attached.size());
+                for (Map.Entry<Key, LinkedHashMap<String, Node>> entry : attached.entrySet()) {
+                    ObjectImpl.ObjectHistoryStore ohs = objectStore.readHistoryStore(entry.getKey());
+                    for (Map.Entry<String, Node> child : entry.getValue().entrySet()) {
+                        ohs = ohs.addPatch(new ObjectImpl.Patch(stamp, ObjectImpl.PatchType.ADD_CHILD, child.getKey(), child.getValue().key), batch);
+                    }
+                    changed.add(ohs);
+                }
+                batch.commit();
+                for (ObjectImpl.ObjectHistoryStore ohs : changed) {
+                    objectStore.cacheHistoryStore(ohs.getKey(), ohs);
+                }
+                objectStore.registerValues(added);
+            } catch (StoreException e) {
+                // cached objects may already contain some of the patches
+                for (Key key : attached.keySet()) {
+                    objectStore.evictHistoryStore(key);
+                }
+                throw e;
+            } finally {
+                for (int i = locks.size() - 1; i >= 0; i--) {
+                    locks.get(i).writeLock().unlock();
+                }
+            }
+        } finally {
+            attached.clear();
+            added.clear();
+            batch = null;
+            objectStore.getCompactor().unpin(pin);
+        }
+    }
+
+    public void rollback() throws IllegalStateException {
+        checkOpen();
+        open = false;
+        attached.clear();
+        added.clear();
+        batch = null;
+        lastParent = null;
+        objectStore.getCompactor().unpin(pin);
+    }
+
+}
@@ -20,14 +20,37 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
 
+import org.apache.cassandra.cql3.CQLStatement;
+import org.apache.cassandra.cql3.QueryOptions;
+import org.apache.cassandra.cql3.QueryProcessor;
+import org.apache.cassandra.cql3.UntypedResultSet;
+import org.apache.cassandra.db.ConsistencyLevel;
+import org.apache.cassandra.db.SystemKeyspace;
+import org.apache.cassandra.db.marshal.LongType;
+import org.apache.cassandra.db.marshal.UUIDType;
+import org.apache.cassandra.exceptions.RequestExecutionException;
+import org.apache.cassandra.exceptions.RequestValidationException;
 import org.apache.cassandra.service.CassandraDaemon;
+import org.apache.cassandra.service.ClientState;
+import org.apache.cassandra.service.QueryState;
+import org.apache.cassandra.transport.messages.ResultMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,14 +65,104 @@ import io.fluffypaws.prefect.api.Stamp;
 import io.fluffypaws.prefect.api.StoreException;
 import io.fluffypaws.prefect.api.StoreFactory;
 import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
 
+/**
+ * Stores every key as a row of a table in an embedded Cassandra node, which is configured by a cassandra.yaml that is
+ * generated in the store directory. The keyspace and tables are created on initialize, in {@link #STORE_KEYSPACE_KEY}
+ * with {@link #STORE_REPLICATION_KEY} replicas, and every statement is prepared once and executed through the storage
+ * proxy with consistency level {@link #STORE_CONSISTENCY_KEY}, so a node that joins a cluster spreads its rows over it.
+ *
+ * Writes and asynchronous reads are executed by a pool of {@link #STORE_IN_FLIGHT_KEY} threads and at most that many
+ * are in flight at once, the others wait in the queue of the pool, so starting an asynchronous request never blocks.
+ * The writes of a batch are executed in parallel: first the added keys, then the keys that are overwritten, so that a
+ * record never refers to a key that was not written.
+ *
+ * Keys are allocated from blocks of {@link #STORE_KEY_BLOCK_SIZE_KEY} keys that are reserved with a lightweight
+ * transaction on a counter row. Every thread allocates from one of several blocks, picked by its id, so allocating
+ * does not contend on a single counter. Keys are therefore not allocated in order, {@link #getHighestKey()} returns the
+ * lowest point any block has reached.
+ *
+ * Only the blocks of this store are known to it, so a keyspace has a single writer: the first node that opens the
+ * keyspace claims it in the owner table, and a store on any other node fails to initialize instead of compacting keys
+ * that the other node has allocated but not linked yet. Deleting the row in the owner table hands the keyspace over.
+ */
 public class CassandraKeyValueStore implements KeyValueStore {
 
     private static Logger log = LoggerFactory.getLogger(CassandraKeyValueStore.class);
     private static CassandraDaemon cassandraDaemon = null;
 
+    public static final String STORE_KEYSPACE_KEY = "store.cassandra.keyspace";
+    public static final String STORE_REPLICATION_KEY = "store.cassandra.replication";
+    public static final String STORE_CONSISTENCY_KEY = "store.cassandra.consistency";
+    public static final String STORE_IN_FLIGHT_KEY = "store.cassandra.inflight";
+    public static final String STORE_KEY_BLOCK_SIZE_KEY = "store.cassandra.keyblock.size";
+
+    static final String DEFAULT_KEYSPACE = "prefect";
+    static final int DEFAULT_REPLICATION = 1;
+    static final String DEFAULT_CONSISTENCY = "ONE";
+    static final int DEFAULT_IN_FLIGHT = 64;
+    static final int DEFAULT_KEY_BLOCK_SIZE = 1024;
+
+    private static final String NEXT_KEY = "next_key";
+    private static final String WRITER = "writer";
+    private static final int SCAN_PAGE_SIZE = 1000;
+
     private final String CASSANDRA_CONFIG_FILENAME = "cassandra.yaml";
 
+    /**
+     * Range of keys reserved by this store, next up to but not including end.
+     */
+    private static final class KeyBlock {
+        long next;
+        long end;
+    }
+
+    private class CassandraWriteBatch implements WriteBatch {
+        private final Map<Key, Value> added = new HashMap<>();
+        private final Map<Key, Value> written = new HashMap<>();
+        private boolean committed = false;
+        public Key add(final Value value) throws StoreException {
+            Key key = allocateKey();
+            added.put(key, value);
+            return key;
+        }
+        public void write(final Key key, final Value value) throws StoreException {
+            if (added.containsKey(key)) {
+                added.put(key, value);
+            } else {
+                written.put(key, value);
+            }
+        }
+        public void commit() throws StoreException, IllegalStateException {
+            if (committed) {
+                throw new IllegalStateException("Batch was already committed");
+            }
+            committed = true;
+            writeAll(added);
+            writeAll(written);
+            synchronized (stats) {
+                stats.totalCommits++;
+            }
+        }
+    }
+
+    private String keyspace = DEFAULT_KEYSPACE;
+    private ConsistencyLevel consistency;
+    private int keyBlockSize = DEFAULT_KEY_BLOCK_SIZE;
+    private CQLStatement insert;
+    private CQLStatement select;
+    private CQLStatement delete;
+    private CQLStatement scan;
+    private CQLStatement selectNextKey;
+    private CQLStatement reserveKeys;
+    private KeyBlock[] blocks;
+    // end of the highest block reserved so far, every block that is reserved later starts at or above it
+    private long reserved;
+    private ExecutorService executor;
+    private RateLimiter compactionLimiter;
+    private final KeyValueStoreStatistics stats = new KeyValueStoreStatistics();
+
     public CassandraKeyValueStore() {
     }
 
@@ -108,33 +221,262 @@ public class CassandraKeyValueStore implements KeyValueStore {
         // Used the following for inspiration: https://github.com/jsevellec/cassandra-unit/blob/21dc8a443a78021e0f1afebd4712cfed6ed3fce0/cassandra-unit/src/main/java/org/cassandraunit/utils/EmbeddedCassandraServerHelper.java
         System.setProperty("cassandra.config", "file:///" + cassandraConfigFileName);
 
+        int replication;
+        int maxInFlight;
+        try {
+            keyspace = properties.getProperty(STORE_KEYSPACE_KEY, DEFAULT_KEYSPACE);
+            replication = Integer.parseInt(properties.getProperty(STORE_REPLICATION_KEY, String.valueOf(DEFAULT_REPLICATION)));
+            consistency = ConsistencyLevel.valueOf(properties.getProperty(STORE_CONSISTENCY_KEY, DEFAULT_CONSISTENCY).toUpperCase());
+            maxInFlight = Integer.parseInt(properties.getProperty(STORE_IN_FLIGHT_KEY, String.valueOf(DEFAULT_IN_FLIGHT)));
+            keyBlockSize = Integer.parseInt(properties.getProperty(STORE_KEY_BLOCK_SIZE_KEY, String.valueOf(DEFAULT_KEY_BLOCK_SIZE)));
+            compactionLimiter = RateLimiter.fromProperties(properties);
+        } catch (IllegalArgumentException e) {
+            log.error("Cannot initialize CassandraKeyValueStore, invalid value for property", e);
+            return false;
+        }
+        if (maxInFlight < 1 || keyBlockSize < 1 || !keyspace.matches("[a-zA-Z][a-zA-Z0-9_]*")) {
+            log.error("Cannot initialize CassandraKeyValueStore, invalid value for " + STORE_IN_FLIGHT_KEY + ", " + STORE_KEY_BLOCK_SIZE_KEY + " or " + STORE_KEYSPACE_KEY);
+            return false;
+        }
+
         cassandraDaemon = new CassandraDaemon();
         cassandraDaemon.activate();
+        if (!cassandraDaemon.setupCompleted()) {
+            log.error("Cannot initialize CassandraKeyValueStore, Cassandra did not start");
+            return false;
+        }
+
+        try {
+            QueryProcessor.process("CREATE KEYSPACE IF NOT EXISTS " + keyspace + " WITH replication = {'class': 'SimpleStrategy', 'replication_factor': " + replication + "}", ConsistencyLevel.ONE);
+            QueryProcessor.process("CREATE TABLE IF NOT EXISTS " + keyspace + ".kv (key bigint PRIMARY KEY, value blob)", ConsistencyLevel.ONE);
+            QueryProcessor.process("CREATE TABLE IF NOT EXISTS " + keyspace + ".meta (name text PRIMARY KEY, value bigint)", ConsistencyLevel.ONE);
+            QueryProcessor.process("CREATE TABLE IF NOT EXISTS " + keyspace + ".owner (name text PRIMARY KEY, host uuid)", ConsistencyLevel.ONE);
+            insert = prepare("INSERT INTO " + keyspace + ".kv (key, value) VALUES (?, ?)");
+            select = prepare("SELECT value FROM " + keyspace + ".kv WHERE key = ?");
+            delete = prepare("DELETE FROM " + keyspace + ".kv WHERE key = ?");
+            scan = prepare("SELECT key, token(key) AS position FROM " + keyspace + ".kv WHERE token(key) > ? LIMIT " + SCAN_PAGE_SIZE);
+            selectNextKey = prepare("SELECT value FROM " + keyspace + ".meta WHERE name = '" + NEXT_KEY + "'");
+            reserveKeys = prepare("UPDATE " + keyspace + ".meta SET value = ? WHERE name = '" + NEXT_KEY + "' IF value = ?");
+            execute(prepare("INSERT INTO " + keyspace + ".meta (name, value) VALUES ('" + NEXT_KEY + "', ?) IF NOT EXISTS"), long2bytes(1));
+            // the host id is kept in the store directory, so the node that claimed the keyspace keeps it across restarts
+            UUID host = SystemKeyspace.getLocalHostId();
+            UntypedResultSet.Row owner = execute(prepare("INSERT INTO " + keyspace + ".owner (name, host) VALUES ('" + WRITER + "', ?) IF NOT EXISTS"), UUIDType.instance.decompose(host)).one();
+            if (!owner.getBoolean("[applied]") && !host.equals(owner.getUUID("host"))) {
+                log.error("Cannot initialize CassandraKeyValueStore, keyspace " + keyspace + " is written by node " + owner.getUUID("host"));
+                return false;
+            }
+            if (execute(select, long2bytes(0)).isEmpty()) {
+                execute(insert, long2bytes(0), ByteBuffer.allocate(0));
+            }
+        } catch (RequestExecutionException | StoreException e) {
+            log.error("Cannot initialize CassandraKeyValueStore, cannot create schema in keyspace " + keyspace, e);
+            return false;
+        }
+
+        blocks = new KeyBlock[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = new KeyBlock();
+        }
+        executor = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            Thread thread = new Thread(runnable, "prefect-cassandra-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return true;
+    }
+
+    private static CQLStatement prepare(final String query) throws StoreException {
+        try {
+            return QueryProcessor.getStatement(query, ClientState.forInternalCalls()).statement;
+        } catch (RequestValidationException e) {
+            log.error("Cannot prepare " + query, e);
+            throw new StoreException(e);
+        }
+    }
+
+    private UntypedResultSet execute(final CQLStatement statement, final ByteBuffer... values) throws StoreException {
+        try {
+            ResultMessage result = statement.execute(QueryState.forInternalCalls(), QueryOptions.forInternalCalls(consistency, Arrays.asList(values)));
+            if (result instanceof ResultMessage.Rows) {
+                return UntypedResultSet.create(((ResultMessage.Rows)result).result);
+            }
+            return UntypedResultSet.create(new ArrayList<>());
+        } catch (RequestValidationException | RequestExecutionException e) {
+            log.error("Error executing statement in keyspace " + keyspace, e);
+            throw new StoreException(e);
+        }
+    }
+
+    private static ByteBuffer long2bytes(final long l) {
+        return LongType.instance.decompose(l);
+    }
+
+    /**
+     * Reserves the next block of keys, retrying when another store reserved a block concurrently.
+     */
+    private long reserveBlock() throws StoreException {
+        while (true) {
+            UntypedResultSet current = execute(selectNextKey);
+            long next = current.one().getLong("value");
+            UntypedResultSet result = execute(reserveKeys, long2bytes(next + keyBlockSize), long2bytes(next));
+            if (result.one().getBoolean("[applied]")) {
+                synchronized (this) {
+                    reserved = Math.max(reserved, next + keyBlockSize);
+                }
+                return next;
+            }
+        }
+    }
+
+    private Key allocateKey() throws StoreException {
+        KeyBlock block = blocks[(int)(Thread.currentThread().getId() % blocks.length)];
+        synchronized (block) {
+            if (block.next == block.end) {
+                block.next = reserveBlock();
+                block.end = block.next + keyBlockSize;
+            }
+            return new Key(block.next++);
+        }
+    }
+
+    /**
+     * Executes the inserts on the request pool and waits until all of them are done.
+     */
+    private void writeAll(final Map<Key, Value> values) throws StoreException {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(values.size());
+        for (Map.Entry<Key, Value> entry : values.entrySet()) {
+            futures.add(insertAsync(entry.getKey(), entry.getValue()));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof StoreException) {
+                throw (StoreException)e.getCause();
+            }
+            throw new StoreException(e);
+        }
+    }
+
+    /**
+     * Queues a request on the request pool, which runs as many at once as it has threads.
+     */
+    private <T> CompletableFuture<T> submit(final Futures.StoreCall<T> call) {
+        return Futures.supply(call, executor);
+    }
+
+    private CompletableFuture<Void> insertAsync(final Key key, final Value value) {
+        return submit(() -> {
+            insert(key, value);
+            return null;
+        });
+    }
 
-        return cassandraDaemon.setupCompleted();
+    private void insert(final Key key, final Value value) throws StoreException {
+        execute(insert, long2bytes(key.toLong()), ByteBuffer.wrap(value.getData()));
+        synchronized (stats) {
+            stats.totalWrites++;
+            stats.totalBytesWritten += value.getLength();
+        }
     }
 
     public void shutdown() {
+        executor.shutdown();
         cassandraDaemon.deactivate();
         cassandraDaemon = null;
     }
 
     public Key getFirstKey() {
-        return null;
+        return new Key(0);
     }
 
     public Key add(final Value value) throws StoreException {
-        return null;
+        Key key = allocateKey();
+        write(key, value);
+        return key;
     }
 
     public Value read(final Key key) throws StoreException {
-        return null;
+        UntypedResultSet result = execute(select, long2bytes(key.toLong()));
+        if (result.isEmpty()) {
+            return null;
+        }
+        return new Value(result.one().getBytes("value"));
+    }
+
+    public CompletableFuture<Key> addAsync(final Value value) {
+        return submit(() -> {
+            Key key = allocateKey();
+            insert(key, value);
+            return key;
+        });
+    }
+
+    public CompletableFuture<Value> readAsync(final Key key) {
+        return submit(() -> read(key));
+    }
+
+    public CompletableFuture<Void> writeAsync(final Key key, final Value value) {
+        return insertAsync(key, value);
     }
 
     public void write(final Key key, final Value value) throws StoreException {
+        Map<Key, Value> values = new HashMap<>();
+        values.put(key, value);
+        writeAll(values);
     }
 
     public void delete(final Key key) throws StoreException, IllegalArgumentException {
+        if (key.toLong() == 0) {
+            throw new IllegalArgumentException("Cannot delete the first key");
+        }
+        execute(delete, long2bytes(key.toLong()));
+    }
+
+    public Key getHighestKey() {
+        long highest;
+        synchronized (this) {
+            highest = reserved - 1;
+        }
+        for (KeyBlock block : blocks) {
+            synchronized (block) {
+                if (block.next < block.end) {
+                    highest = Math.min(highest, block.next - 1);
+                }
+            }
+        }
+        return new Key(Math.max(highest, 0));
+    }
+
+    /**
+     * Scans the table in token order and deletes the keys that are not live, Cassandra reclaims the space of deleted and
+     * overwritten rows by compacting its sstables.
+     */
+    public void compact(final Key horizon, final Predicate<Key> live) throws StoreException {
+        long token = Long.MIN_VALUE;
+        long deleted = 0;
+        while (true) {
+            UntypedResultSet page = execute(scan, long2bytes(token));
+            for (UntypedResultSet.Row row : page) {
+                long key = row.getLong("key");
+                token = row.getLong("position");
+                if (key != 0 && key <= horizon.toLong() && !live.test(new Key(key))) {
+                    execute(delete, long2bytes(key));
+                    deleted++;
+                }
+                compactionLimiter.acquire(Long.BYTES);
+            }
+            if (page.size() < SCAN_PAGE_SIZE) {
+                break;
+            }
+        }
+        log.info("CassandraKeyValueStore deleted " + deleted + " keys in keyspace " + keyspace);
+    }
+
+    public WriteBatch createWriteBatch() {
+        return new CassandraWriteBatch();
     }
 
     public Stamp generateStamp() {
@@ -146,7 +488,7 @@ public class CassandraKeyValueStore implements KeyValueStore {
     }
 
     public KeyValueStoreStatistics getStatistics() {
-        return null;
+        return stats;
     }
 
-}
\ No newline at end of file
+}
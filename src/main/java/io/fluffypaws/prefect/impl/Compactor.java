@@ -0,0 +1,337 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * Reclaims the space of everything that can no longer be reached from the root object. The keys that are still needed
+ * are marked by walking the objects from the root, reading every object while holding its read lock, after which the
+ * key value store deletes the other keys and compacts, see {@link KeyValueStore#compact(Key, java.util.function.Predicate)}.
+ *
+ * With a retention stamp only the state of every object at that stamp and the changes made after it are needed: values
+ * that were replaced and children that were deleted at or before it are not marked, and neither are the records that a
+ * snapshot replaced if the snapshot was taken at or before it.
+ *
+ * Keys allocated after the walk starts are always live. So are the keys of changes that were in progress: a change that
+ * allocates keys before taking the lock of its object {@link #pin()}s the highest key first, and only keys up to the
+ * lowest pin are candidates for deletion. A transaction that is neither committed nor rolled back keeps its pin.
+ * Values shared by {@link ValueDeduplicator} are handled there.
+ *
+ * Compacting with a retention stamp leaves the records of the objects as they are, so reading an object still replays
+ * its whole patch list. {@link #prune(Stamp)} first rewrites every object so that its history starts at the retention
+ * stamp, then compacts.
+ */
+final class Compactor {
+
+    private static Logger log = LoggerFactory.getLogger(Compactor.class);
+
+    /**
+     * A change in progress, every key it allocates is higher than the floor.
+     */
+    static final class Pin {
+        private final long floor;
+        // existing keys the change refers to, see ValueDeduplicator
+        final List<Key> reused = new ArrayList<>();
+        private Pin(final long floor) {
+            this.floor = floor;
+        }
+    }
+
+    /**
+     * The keys marked while walking. Keys above the horizon are live anyway, they are only remembered so that every
+     * object is walked once: a store that does not allocate keys in order may have children above the horizon with
+     * descendants below it.
+     */
+    private static final class Marks {
+        private final long horizon;
+        private final long[] words;
+        private final Set<Key> above = new HashSet<>();
+        private Marks(final long horizon) {
+            this.horizon = horizon;
+            this.words = new long[(int)((horizon >>> 6) + 1)];
+        }
+        /**
+         * @return true if the key was not marked yet
+         */
+        boolean mark(final Key key) {
+            if (key == null) {
+                return false;
+            }
+            long l = key.toLong();
+            if (l > horizon) {
+                return above.add(key);
+            }
+            long bit = 1L << (l & 63);
+            int word = (int)(l >>> 6);
+            if ((words[word] & bit) != 0) {
+                return false;
+            }
+            words[word] |= bit;
+            return true;
+        }
+        boolean isLive(final Key key) {
+            long l = key.toLong();
+            return l > horizon || (words[(int)(l >>> 6)] & (1L << (l & 63))) != 0;
+        }
+    }
+
+    private final ObjectStoreImpl objectStore;
+    private final KeyValueStore store;
+    private final RateLimiter limiter;
+    private final ValueDeduplicator deduplicator;
+    private final Set<Pin> pins = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService executor;
+
+    Compactor(final ObjectStoreImpl objectStore, final RateLimiter limiter) {
+        this.objectStore = objectStore;
+        this.store = objectStore.getKeyValueStore();
+        this.limiter = limiter;
+        this.deduplicator = objectStore.getDeduplicator();
+    }
+
+    Pin pin() {
+        Pin pin = new Pin(store.getHighestKey().toLong());
+        pins.add(pin);
+        return pin;
+    }
+
+    void unpin(final Pin pin) {
+        pins.remove(pin);
+    }
+
+    /**
+     * Compacts in the background every interval, pruning the history older than the given period.
+     * @param retention the period of history to keep in milliseconds, negative to keep all history
+     */
+    void schedule(final long interval, final long retention) {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prefect-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                if (retention < 0) {
+                    compact(null);
+                } else {
+                    prune(store.calculateSnapshotStamp(Instant.now().minusMillis(retention)));
+                }
+            } catch (StoreException | RuntimeException e) {
+                log.error("Error compacting in the background", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void compact(final Stamp retention) throws StoreException {
+        long horizon = store.getHighestKey().toLong();
+        for (Pin pin : pins) {
+            horizon = Math.min(horizon, pin.floor);
+        }
+
+        Set<Key> reused = deduplicator == null ? Collections.emptySet() : deduplicator.startTracking(pins);
+        try {
+            compact(retention, horizon, reused);
+        } finally {
+            if (deduplicator != null) {
+                deduplicator.stopTracking();
+            }
+        }
+    }
+
+    private void compact(final Stamp retention, final long horizon, final Set<Key> reused) throws StoreException {
+        Marks marks = new Marks(horizon);
+        ArrayDeque<Key> objects = new ArrayDeque<>();
+        marks.mark(store.getFirstKey());
+        objects.push(store.getFirstKey());
+        long walked = 0;
+        while (!objects.isEmpty()) {
+            Key key = objects.pop();
+            List<Key> children = new ArrayList<>();
+            long bytes;
+            ReadWriteLock lock = objectStore.getLock(key);
+            lock.readLock().lock();
+            try {
+                bytes = walkRecord(key, store.read(key), retention, marks, children);
+            } finally {
+                lock.readLock().unlock();
+            }
+            limiter.acquire(bytes);
+            for (Key child : children) {
+                if (marks.mark(child)) {
+                    objects.push(child);
+                }
+            }
+            walked++;
+        }
+        log.info("Compactor walked " + walked + " objects up to key " + horizon);
+
+        Predicate<Key> live = key -> marks.isLive(key) || reused.contains(key);
+        if (deduplicator != null) {
+            deduplicator.purge(live);
+        }
+        store.compact(new Key(horizon), live);
+    }
+
+    /**
+     * Collapses the history of every object up to and including the retention stamp, see
+     * {@link ObjectImpl.ObjectHistoryStore#prune(Key, Stamp, WriteBatch, List)}, and compacts to reclaim the patches,
+     * values and records that are no longer referred to. Every object is rewritten while holding its write lock.
+     */
+    synchronized void prune(final Stamp retention) throws StoreException {
+        Marks visited = new Marks(store.getHighestKey().toLong());
+        ArrayDeque<Key> objects = new ArrayDeque<>();
+        visited.mark(store.getFirstKey());
+        objects.push(store.getFirstKey());
+        long pruned = 0;
+        while (!objects.isEmpty()) {
+            Key key = objects.pop();
+            List<Key> children = new ArrayList<>();
+            ReadWriteLock lock = objectStore.getLock(key);
+            lock.writeLock().lock();
+            try {
+                ObjectImpl.ObjectHistoryStore ohs = objectStore.readHistoryStore(key);
+                WriteBatch batch = store.createWriteBatch();
+                ObjectImpl.ObjectHistoryStore result = ohs.prune(key, retention, batch, children);
+                batch.commit();
+                objectStore.cacheHistoryStore(key, result);
+                if (result != ohs) {
+                    pruned++;
+                }
+            } catch (StoreException e) {
+                objectStore.evictHistoryStore(key);
+                throw e;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Key child : children) {
+                if (visited.mark(child)) {
+                    objects.push(child);
+                }
+            }
+        }
+        log.info("Compactor pruned the history of " + pruned + " objects before " + retention);
+
+        compact(retention);
+    }
+
+    /**
+     * Marks what an object record refers to, and the records it replaced as far as the retention requires, and
+     * collects the keys of its children.
+     * @return the number of bytes read
+     */
+    private long walkRecord(Key key, Value record, final Stamp retention, final Marks marks, final List<Key> children) throws StoreException {
+        RecordCodec codec = objectStore.getCodec();
+        long bytes = 0;
+        while (true) {
+            if (record == null) {
+                // only reachable through history that was already reclaimed
+                log.warn("Compactor skips missing record " + key);
+                return bytes;
+            }
+            bytes += record.getLength();
+            if (record.isEmpty()) {
+                return bytes;
+            }
+            ByteBuffer buffer = record.getBuffer();
+            ObjectImpl.ObjectHistoryStoreType type = codec.decodeObjectType(buffer);
+            if (type == ObjectImpl.ObjectHistoryStoreType.InitialObject) {
+                return bytes;
+            }
+            ObjectImpl.History history = codec.decodeHistory(buffer);
+            ObjectImpl.Snapshot base = type == ObjectImpl.ObjectHistoryStoreType.Snapshot ? codec.decodeSnapshot(buffer) : null;
+
+            List<ObjectImpl.PatchBlock> blocks = new ArrayList<>();
+            Key blockKey = history.next;
+            while (blockKey != null) {
+                marks.mark(blockKey);
+                Value block = store.read(blockKey);
+                if (block == null) {
+                    log.warn("Compactor skips missing patch block " + blockKey + " of " + key);
+                    break;
+                }
+                bytes += block.getLength();
+                ObjectImpl.PatchBlock decoded = codec.decodePatchBlock(block.getBuffer());
+                blocks.add(decoded);
+                blockKey = decoded.previous;
+            }
+
+            Key valueKey = base == null ? null : base.valueKey;
+            LinkedHashMap<String, Key> state = base == null ? new LinkedHashMap<>() : new LinkedHashMap<>(base.children);
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                for (ObjectImpl.Patch patch : blocks.get(i).patches) {
+                    boolean retained = retention == null || patch.stamp.isAfter(retention);
+                    switch (patch.type) {
+                        case SET_VALUE:
+                            if (retained) {
+                                marks.mark(patch.key);
+                            } else {
+                                valueKey = patch.key;
+                            }
+                            break;
+                        case ADD_CHILD:
+                            if (retained) {
+                                children.add(patch.key);
+                            } else {
+                                state.put(patch.childName, patch.key);
+                            }
+                            break;
+                        case DELETE_CHILD:
+                            if (!retained) {
+                                state.remove(patch.childName);
+                            }
+                            break;
+                    }
+                }
+            }
+            marks.mark(valueKey);
+            children.addAll(state.values());
+
+            if (base == null || base.previous == null || (retention != null && !base.stamp.isAfter(retention))) {
+                return bytes;
+            }
+            key = base.previous;
+            marks.mark(key);
+            record = store.read(key);
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * Compresses the values written to another store with the codec in {@link #STORE_COMPRESSION_KEY}: lz4 is fast, deflate
+ * is dense. Values shorter than {@link #STORE_COMPRESSION_THRESHOLD_KEY} bytes, and values that do not get smaller, are
+ * written as they are.
+ *
+ * A compressed value starts with a header: 3 magic bytes, the codec (1 byte) and the uncompressed length (4 bytes).
+ * Values without the magic bytes are read as they are, so a store can be switched to another codec (or to none) and
+ * still read everything that was written before. A value that is written as it is but happens to start with the magic
+ * bytes gets a header with codec none.
+ */
+public class CompressingKeyValueStore implements KeyValueStore {
+
+    private static Logger log = LoggerFactory.getLogger(CompressingKeyValueStore.class);
+
+    public static final String STORE_COMPRESSION_KEY = "store.compression";
+    public static final String STORE_COMPRESSION_THRESHOLD_KEY = "store.compression.threshold";
+
+    static final int DEFAULT_COMPRESSION_THRESHOLD = 64;
+
+    static final int HEADER_SIZE = 8;
+    private static final byte[] MAGIC = { (byte)0xfe, 'p', 'z' };
+    private static final int CODEC_OFFSET = 3;
+    private static final int LENGTH_OFFSET = 4;
+
+    enum Codec {
+        NONE, LZ4, DEFLATE
+    }
+
+    /**
+     * Batch of the underlying store that compresses the values written to it.
+     */
+    private class CompressingWriteBatch implements WriteBatch {
+        private final WriteBatch batch;
+        CompressingWriteBatch(final WriteBatch batch) {
+            this.batch = batch;
+        }
+        public Key add(final Value value) throws StoreException {
+            return batch.add(compress(value));
+        }
+        public void write(final Key key, final Value value) throws StoreException {
+            batch.write(key, compress(value));
+        }
+        public void commit() throws StoreException, IllegalStateException {
+            batch.commit();
+        }
+    }
+
+    private KeyValueStore store;
+    private Codec codec;
+    private int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private final LZ4Compressor lz4Compressor = LZ4Factory.fastestJavaInstance().fastCompressor();
+    private final LZ4FastDecompressor lz4Decompressor = LZ4Factory.fastestJavaInstance().fastDecompressor();
+
+    public CompressingKeyValueStore() {
+    }
+
+    /**
+     * @return true if the store is compressed, which happens whenever {@link #STORE_COMPRESSION_KEY} is set
+     */
+    public static boolean isEnabled(final Properties properties) {
+        return properties.getProperty(STORE_COMPRESSION_KEY) != null;
+    }
+
+    public boolean initialize(final Properties properties, final KeyValueStore store) {
+        this.store = store;
+        try {
+            codec = Codec.valueOf(properties.getProperty(STORE_COMPRESSION_KEY, "none").toUpperCase());
+            threshold = Integer.parseInt(properties.getProperty(STORE_COMPRESSION_THRESHOLD_KEY, String.valueOf(DEFAULT_COMPRESSION_THRESHOLD)));
+        } catch (IllegalArgumentException e) {
+            log.error("Cannot initialize CompressingKeyValueStore, invalid value for " + STORE_COMPRESSION_KEY + " or " + STORE_COMPRESSION_THRESHOLD_KEY, e);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean hasHeader(final ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] header(final Codec codec, final int length, final int payloadLength) {
+        byte[] bytes = new byte[HEADER_SIZE + payloadLength];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[CODEC_OFFSET] = (byte)codec.ordinal();
+        ByteBuffer.wrap(bytes).putInt(LENGTH_OFFSET, length);
+        return bytes;
+    }
+
+    Value compress(final Value value) {
+        int length = value.getLength();
+        if (codec == Codec.NONE || length < threshold) {
+            return hasHeader(value.getBuffer()) ? withHeader(value, Codec.NONE, value.getData(), length) : value;
+        }
+        byte[] data = value.getData();
+        byte[] compressed;
+        int compressedLength;
+        switch (codec) {
+            case LZ4:
+                compressed = new byte[lz4Compressor.maxCompressedLength(length)];
+                compressedLength = lz4Compressor.compress(data, 0, length, compressed, 0, compressed.length);
+                break;
+            case DEFLATE:
+                compressed = deflate(data);
+                compressedLength = compressed.length;
+                break;
+            default:
+                throw new IllegalStateException("Unknown codec " + codec);
+        }
+        KeyValueStoreStatistics stats = store.getStatistics();
+        if (compressedLength + HEADER_SIZE >= length) {
+            synchronized (stats) {
+                stats.totalBytesUncompressed += length;
+                stats.totalBytesCompressed += length;
+            }
+            return hasHeader(value.getBuffer()) ? withHeader(value, Codec.NONE, data, length) : value;
+        }
+        synchronized (stats) {
+            stats.totalBytesUncompressed += length;
+            stats.totalBytesCompressed += HEADER_SIZE + compressedLength;
+        }
+        return withHeader(value, codec, compressed, compressedLength);
+    }
+
+    private static Value withHeader(final Value value, final Codec codec, final byte[] payload, final int payloadLength) {
+        byte[] bytes = header(codec, value.getLength(), payloadLength);
+        System.arraycopy(payload, 0, bytes, HEADER_SIZE, payloadLength);
+        return new Value(bytes);
+    }
+
+    private static byte[] deflate(final byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    Value decompress(final Key key, final Value value) throws StoreException {
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer buffer = value.getBuffer();
+        if (!hasHeader(buffer)) {
+            return value;
+        }
+        int start = buffer.position();
+        int codecId = buffer.get(start + CODEC_OFFSET);
+        int length = buffer.getInt(start + LENGTH_OFFSET);
+        ((Buffer)buffer).position(start + HEADER_SIZE);
+        if (codecId < 0 || codecId >= Codec.values().length || length < 0) {
+            String message = "Error decompressing " + key + ", invalid header";
+            log.error(message);
+            throw new StoreException(message);
+        }
+        try {
+            switch (Codec.values()[codecId]) {
+                case NONE:
+                    return new Value(buffer.slice());
+                case LZ4: {
+                    byte[] compressed = new byte[buffer.remaining()];
+                    buffer.get(compressed);
+                    byte[] data = new byte[length];
+                    lz4Decompressor.decompress(compressed, 0, data, 0, length);
+                    return new Value(data);
+                }
+                case DEFLATE: {
+                    Inflater inflater = new Inflater();
+                    try {
+                        byte[] compressed = new byte[buffer.remaining()];
+                        buffer.get(compressed);
+                        inflater.setInput(compressed);
+                        byte[] data = new byte[length];
+                        int n = 0;
+                        while (n < length && !inflater.finished()) {
+                            int inflated = inflater.inflate(data, n, length - n);
+                            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                                break;
+                            }
+                            n += inflated;
+                        }
+                        if (n != length) {
+                            throw new DataFormatException("expected " + length + " bytes, inflated " + n);
+                        }
+                        return new Value(data);
+                    } finally {
+                        inflater.end();
+                    }
+                }
+                default:
+                    throw new IllegalStateException();
+            }
+        } catch (LZ4Exception | DataFormatException e) {
+            log.error("Error decompressing " + key, e);
+            throw new StoreException(e);
+        }
+    }
+
+    public Key getFirstKey() {
+        return store.getFirstKey();
+    }
+
+    public Key add(final Value value) throws StoreException {
+        return store.add(compress(value));
+    }
+
+    public Value read(final Key key) throws StoreException {
+        return decompress(key, store.read(key));
+    }
+
+    public void write(final Key key, final Value value) throws StoreException {
+        store.write(key, compress(value));
+    }
+
+    public CompletableFuture<Key> addAsync(final Value value) {
+        return store.addAsync(compress(value));
+    }
+
+    public CompletableFuture<Value> readAsync(final Key key) {
+        return store.readAsync(key).thenApply(value -> {
+            try {
+                return decompress(key, value);
+            } catch (StoreException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> writeAsync(final Key key, final Value value) {
+        return store.writeAsync(key, compress(value));
+    }
+
+    public void delete(final Key key) throws StoreException, IllegalArgumentException {
+        store.delete(key);
+    }
+
+    public Key getHighestKey() {
+        return store.getHighestKey();
+    }
+
+    public void compact(final Key horizon, final Predicate<Key> live) throws StoreException {
+        store.compact(horizon, live);
+    }
+
+    public WriteBatch createWriteBatch() {
+        return new CompressingWriteBatch(store.createWriteBatch());
+    }
+
+    public void shutdown() throws StoreException {
+        store.shutdown();
+    }
+
+    public Stamp generateStamp() {
+        return store.generateStamp();
+    }
+
+    public Stamp calculateSnapshotStamp(final Instant instant) {
+        return store.calculateSnapshotStamp(instant);
+    }
+
+    public KeyValueStoreStatistics getStatistics() {
+        return store.getStatistics();
+    }
+
+}
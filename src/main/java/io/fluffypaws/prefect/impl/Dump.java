@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fluffypaws.prefect.api.BulkLoader;
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * Dump of a subtree at a stamp, written in depth first order so that it can be written and read in one sequential
+ * pass. The format is:
+ *
+ * - header:  magic (4 bytes), version (int)
+ * - object:  1 (byte), depth (int, 0 for the object the dump was taken of), name (modified UTF-8), value length (int,
+ *            -1 for no value), value
+ * - end:     0 (byte), number of objects (long), CRC32 of everything before it (long)
+ *
+ * Writing only holds the child keys of the objects on the path to the current one. Every object is copied under its
+ * read lock at the stamp, see {@link ObjectImpl#materialize(Stamp)}, so the dump is consistent while writers go on.
+ * The next children of the current object are read ahead asynchronously into the object cache if there is one, at
+ * most {@link #READ_AHEAD} reads are in flight for the whole dump.
+ *
+ * Reading loads the objects with a {@link BulkLoader}, which only commits once the checksum has been verified.
+ */
+final class Dump {
+
+    private static Logger log = LoggerFactory.getLogger(Dump.class);
+
+    static final int MAGIC = 0x50524644; // "PRFD"
+    static final int VERSION = 1;
+    static final int READ_AHEAD = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte OBJECT = 1;
+    private static final byte END = 0;
+
+    /**
+     * Objects whose children are being written.
+     */
+    private static class Frame {
+        final List<Map.Entry<String, Key>> children;
+        final int depth;
+        int next;
+        int readAhead;
+        Frame(final MaterializedObject object, final int depth) {
+            this.children = new ArrayList<>(object.getChildKeys().entrySet());
+            this.depth = depth;
+        }
+    }
+
+    private Dump() {
+    }
+
+    /**
+     * @see io.fluffypaws.prefect.api.ObjectStore#exportDump(Key, Stamp, OutputStream)
+     * @return the number of objects written
+     */
+    static long write(final ObjectStoreImpl objectStore, final Key key, final Stamp stamp, final OutputStream out) throws StoreException {
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), crc));
+        long count = 0;
+        // read-aheads in flight, over all frames
+        AtomicInteger readingAhead = new AtomicInteger();
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            MaterializedObject root = ObjectImpl.read(objectStore, key).materialize(stamp);
+            if (root == null) {
+                String message = "Cannot dump " + key + ", it did not exist at " + stamp;
+                log.error(message);
+                throw new StoreException(message);
+            }
+            writeObject(data, 0, "", root.getValue());
+            count++;
+
+            Deque<Frame> path = new ArrayDeque<>();
+            path.push(new Frame(root, 1));
+            while (!path.isEmpty()) {
+                Frame frame = path.peek();
+                if (frame.next == frame.children.size()) {
+                    path.pop();
+                    continue;
+                }
+                // children that were skipped while too many reads were in flight are not read ahead any more
+                frame.readAhead = Math.max(frame.readAhead, frame.next);
+                for (; objectStore.isCaching() && frame.readAhead < frame.children.size() && frame.readAhead < frame.next + READ_AHEAD && readingAhead.get() < READ_AHEAD; frame.readAhead++) {
+                    readingAhead.incrementAndGet();
+                    objectStore.readHistoryStoreAsync(frame.children.get(frame.readAhead).getValue()).whenComplete((ohs, e) -> readingAhead.decrementAndGet());
+                }
+                Map.Entry<String, Key> child = frame.children.get(frame.next++);
+                MaterializedObject object = ObjectImpl.read(objectStore, child.getValue()).materialize(stamp);
+                writeObject(data, frame.depth, child.getKey(), object.getValue());
+                count++;
+                if (!object.getChildKeys().isEmpty()) {
+                    path.push(new Frame(object, frame.depth + 1));
+                }
+            }
+
+            data.writeByte(END);
+            data.writeLong(count);
+            data.flush();
+            // the checksum does not cover itself
+            long checksum = crc.getValue();
+            data.writeLong(checksum);
+            data.flush();
+        } catch (IOException e) {
+            log.error("Error writing dump of " + key, e);
+            throw new StoreException(e);
+        }
+        log.info("Dumped " + count + " objects of " + key + " at " + stamp);
+        return count;
+    }
+
+    private static void writeObject(final DataOutputStream data, final int depth, final String name, final Value value) throws IOException {
+        data.writeByte(OBJECT);
+        data.writeInt(depth);
+        data.writeUTF(name);
+        if (value == null) {
+            data.writeInt(-1);
+        } else {
+            data.writeInt(value.getLength());
+            data.write(value.getData());
+        }
+    }
+
+    /**
+     * @see io.fluffypaws.prefect.api.ObjectStore#importDump(Key, InputStream)
+     * @return the number of objects read
+     */
+    static long read(final ObjectStoreImpl objectStore, final Key key, final InputStream in) throws StoreException {
+        CRC32 crc = new CRC32();
+        DataInputStream data = new DataInputStream(new CheckedInputStream(new BufferedInputStream(in, BUFFER_SIZE), crc));
+        BulkLoader loader = objectStore.beginBulkLoad(key);
+        boolean loaded = false;
+        try {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new StoreException("Not a dump, or a dump of an unknown version");
+            }
+            if (data.readByte() != OBJECT || data.readInt() != 0) {
+                throw new StoreException("Dump does not start with the object it was taken of");
+            }
+            data.readUTF();
+            Value rootValue = readValue(data);
+
+            List<String> path = new ArrayList<>();
+            long count = 1;
+            while (data.readByte() == OBJECT) {
+                int depth = data.readInt();
+                String name = data.readUTF();
+                Value value = readValue(data);
+                if (depth < 1 || depth > path.size() + 1) {
+                    throw new StoreException("Dump has an object at depth " + depth + " below depth " + path.size());
+                }
+                path.subList(depth - 1, path.size()).clear();
+                loader.add(path, name, value);
+                path.add(name);
+                count++;
+            }
+            long expectedCount = data.readLong();
+            long checksum = crc.getValue();
+            if (data.readLong() != checksum || expectedCount != count) {
+                throw new StoreException("Dump is corrupt, the checksum or the number of objects does not match");
+            }
+
+            loader.commit();
+            loaded = true;
+            if (rootValue != null) {
+                ObjectImpl.read(objectStore, key).setValue(rootValue);
+            }
+            log.info("Loaded " + count + " objects below " + key);
+            return count;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Error reading dump into " + key, e);
+            throw new StoreException(e);
+        } catch (StoreException e) {
+            log.error("Error reading dump into " + key, e);
+            throw e;
+        } finally {
+            if (!loaded) {
+                try {
+                    loader.rollback();
+                } catch (IllegalStateException e) {
+                    // the commit itself failed
+                }
+            }
+        }
+    }
+
+    private static Value readValue(final DataInputStream data) throws IOException, StoreException {
+        int length = data.readInt();
+        if (length < -1) {
+            throw new StoreException("Dump is corrupt, invalid value length " + length);
+        }
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new Value(bytes);
+    }
+
+}
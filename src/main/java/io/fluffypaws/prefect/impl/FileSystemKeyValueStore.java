@@ -16,15 +16,33 @@
 
 package io.fluffypaws.prefect.impl;
 
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,14 +54,53 @@ import io.fluffypaws.prefect.api.Stamp;
 import io.fluffypaws.prefect.api.StoreException;
 import io.fluffypaws.prefect.api.StoreFactory;
 import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
 
-public class FileSystemKeyValueStore implements KeyValueStore {
+/**
+ * Stores every key in a file of its own. With {@link StoreFactory#STORE_SYNC_KEY} enabled every committed file is
+ * synced to disk, and the directory once per group of concurrently committed batches.
+ *
+ * With {@link #STORE_WAL_KEY} enabled every group of batches is first appended to a write-ahead log as one group of
+ * records (in the format of {@link LogRecords}), and only the log is synced. The files themselves are synced at the
+ * next checkpoint, which is taken when the log reaches {@link #STORE_WAL_CHECKPOINT_SIZE_KEY} bytes: a checkpoint
+ * records the highest key and starts a new log. On startup only the logs since the last checkpoint are replayed.
+ *
+ * Without a write-ahead log the checkpoint is only written at shutdown, and removed again when the store is opened,
+ * so that a store that was not shut down cleanly finds the highest key by listing the directory.
+ *
+ * Overwritten values take no space, so compacting only has to delete the files of keys that are no longer live.
+ * Without a write-ahead log the file with the highest key is kept, the directory listing is all that records it.
+ *
+ * Asynchronous reads use an {@link AsynchronousFileChannel} per file, asynchronous writes are committed from the I/O
+ * threads, so that they are written in the same group as the writes of the other threads.
+ */
+public class FileSystemKeyValueStore implements KeyValueStore, BufferedWriteBatch.Target {
 
     private static Logger log = LoggerFactory.getLogger(FileSystemKeyValueStore.class);
 
+    public static final String STORE_WAL_KEY = "store.wal";
+    public static final String STORE_WAL_CHECKPOINT_SIZE_KEY = "store.wal.checkpoint.size";
+
+    static final long DEFAULT_WAL_CHECKPOINT_SIZE = 64L * 1024L * 1024L;
+    static final String WAL_FILE_PREFIX = "wal-";
+    static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    static final int CHECKPOINT_SIZE = 20;
+
     private long firstKey = 0;
-    private long highestKey = firstKey;
+    private AtomicLong highestKey = new AtomicLong(firstKey);
     private String storeDirectoryName;
+    private boolean sync = false;
+    private boolean wal = false;
+    private long walCheckpointSize = DEFAULT_WAL_CHECKPOINT_SIZE;
+    // guards the log and the set of files that were written since the last checkpoint
+    private final java.lang.Object walLock = new java.lang.Object();
+    private FileChannel walChannel;
+    private long walNumber = -1;
+    private long walPosition = 0;
+    private Set<Long> unsynced = new HashSet<>();
+    private GroupCommit groupCommit = new GroupCommit(this::flush);
+    private RateLimiter compactionLimiter;
+    private ExecutorService executor;
     private KeyValueStoreStatistics stats = new KeyValueStoreStatistics();
 
     public FileSystemKeyValueStore() {
@@ -62,21 +119,45 @@ public class FileSystemKeyValueStore implements KeyValueStore {
             return false;
         }
 
+        sync = Boolean.parseBoolean(properties.getProperty(StoreFactory.STORE_SYNC_KEY, "false"));
+        wal = Boolean.parseBoolean(properties.getProperty(STORE_WAL_KEY, "false"));
+        try {
+            walCheckpointSize = Long.parseLong(properties.getProperty(STORE_WAL_CHECKPOINT_SIZE_KEY, String.valueOf(DEFAULT_WAL_CHECKPOINT_SIZE)));
+            compactionLimiter = RateLimiter.fromProperties(properties);
+            executor = Futures.newExecutor("prefect-filesystem-io", properties);
+        } catch (NumberFormatException e) {
+            log.error("Cannot initialize FileSystemKeyValueStore, invalid value for property: " + STORE_WAL_CHECKPOINT_SIZE_KEY + ", " + StoreFactory.STORE_COMPACTOR_RATE_KEY + " or " + StoreFactory.STORE_ASYNC_THREADS_KEY, e);
+            return false;
+        }
+
         log.info("FileSystemKeyValueStore starting in " + storeDirectoryName);
 
+        boolean initialized;
         try {
-            Value value = read(getFirstKey());
-            if (value != null) {
-                log.error("Cannot initialize FileSystemKeyValueStore, cannot start in a previously initialized directory (yet).");
-                return false;
-            }
+            initialized = read(getFirstKey()) != null;
         } catch (StoreException e) {
             log.error("Cannot initialize FileSystemKeyValueStore, error reading initial object", e);
             return false;
         }
 
+        if (initialized) {
+            try {
+                recover();
+            } catch (IOException | StoreException e) {
+                log.error("Cannot initialize FileSystemKeyValueStore, cannot recover " + storeDirectoryName, e);
+                return false;
+            }
+            return true;
+        }
+
         try {
-            write(getFirstKey(), new Value(), false);
+            write(getFirstKey(), new Value(), false, sync);
+            if (wal) {
+                synchronized (walLock) {
+                    unsynced.add(firstKey);
+                    checkpoint();
+                }
+            }
         } catch (StoreException e) {
             log.error("Cannot initialize FileSystemKeyValueStore, cannot write initial object", e);
             return false;
@@ -85,8 +166,186 @@ public class FileSystemKeyValueStore implements KeyValueStore {
         return true;
     }
 
+    private Path walFile(long number) {
+        return Paths.get(storeDirectoryName, WAL_FILE_PREFIX + String.format("%08d", number));
+    }
+
+    /**
+     * Returns the numbers of the existing log files, in order.
+     */
+    private List<Long> listWalFiles() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(storeDirectoryName), WAL_FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    numbers.add(Long.parseLong(file.getFileName().toString().substring(WAL_FILE_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file " + file);
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Restores the highest key from the last checkpoint, or by listing the directory if there is none, and replays the
+     * logs written since the checkpoint.
+     */
+    private void recover() throws IOException, StoreException {
+        long replayFrom = 0;
+        Path checkpointFile = Paths.get(storeDirectoryName, CHECKPOINT_FILE_NAME);
+        if (Files.isRegularFile(checkpointFile)) {
+            ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(checkpointFile));
+            CRC32 crc = new CRC32();
+            if (checkpoint.capacity() == CHECKPOINT_SIZE) {
+                crc.update(checkpoint.array(), 0, CHECKPOINT_SIZE - 4);
+            }
+            if (checkpoint.capacity() != CHECKPOINT_SIZE || checkpoint.getInt(CHECKPOINT_SIZE - 4) != (int)crc.getValue()) {
+                String message = "Corrupt checkpoint " + checkpointFile;
+                log.error(message);
+                throw new StoreException(message);
+            }
+            replayFrom = checkpoint.getLong(0);
+            highestKey.set(checkpoint.getLong(8));
+            if (!wal) {
+                Files.delete(checkpointFile);
+                syncDirectory();
+            }
+        } else {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(storeDirectoryName))) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (!name.isEmpty() && name.chars().allMatch(Character::isDigit)) {
+                        highestKey.set(Math.max(highestKey.get(), Long.parseLong(name)));
+                    }
+                }
+            }
+        }
+
+        int replayed = 0;
+        List<Long> logs = listWalFiles();
+        synchronized (walLock) {
+            for (long number : logs) {
+                if (number < replayFrom) {
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(walFile(number), StandardOpenOption.READ)) {
+                    LogRecords.scan(channel, 0, (key, offset, data) -> {
+                        Key k = longToKey(key);
+                        if (data == null) {
+                            deleteFile(k);
+                        } else {
+                            byte[] bytes = new byte[data.remaining()];
+                            data.get(bytes);
+                            writeFile(k, new Value(bytes), false);
+                        }
+                        unsynced.add(key);
+                        highestKey.set(Math.max(highestKey.get(), key));
+                    });
+                }
+                walNumber = Math.max(walNumber, number);
+                replayed++;
+            }
+            if (wal || !logs.isEmpty()) {
+                checkpoint();
+            }
+        }
+        log.info("FileSystemKeyValueStore recovered up to key " + highestKey.get() + ", replayed " + replayed + " logs");
+    }
+
+    /**
+     * Syncs the files written since the last checkpoint, records the highest key and starts a new log. Without a
+     * write-ahead log (a store that was opened without one after using it) the logs and the checkpoint are removed.
+     * Must be called while holding the wal lock.
+     */
+    private void checkpoint() throws StoreException {
+        try {
+            for (long key : unsynced) {
+                try (FileChannel channel = FileChannel.open(Paths.get(keyToFileName(longToKey(key))), StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                } catch (NoSuchFileException e) {
+                    // deleted
+                }
+            }
+            syncDirectory();
+            unsynced.clear();
+
+            Path checkpointFile = Paths.get(storeDirectoryName, CHECKPOINT_FILE_NAME);
+            long previous = walNumber;
+            if (walChannel != null) {
+                walChannel.close();
+                walChannel = null;
+            }
+            if (wal) {
+                walNumber = previous + 1;
+                walChannel = FileChannel.open(walFile(walNumber), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                walPosition = 0;
+                writeCheckpointFile(walNumber);
+            } else {
+                Files.deleteIfExists(checkpointFile);
+            }
+            syncDirectory();
+
+            for (long number : listWalFiles()) {
+                if (!wal || number < walNumber) {
+                    Files.delete(walFile(number));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error writing checkpoint in " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+    }
+
+    /**
+     * Atomically replaces the checkpoint file, which records the highest key and the first log to replay.
+     */
+    private void writeCheckpointFile(final long replayFrom) throws IOException {
+        ByteBuffer checkpoint = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        checkpoint.putLong(replayFrom);
+        checkpoint.putLong(highestKey.get());
+        CRC32 crc = new CRC32();
+        crc.update(checkpoint.array(), 0, CHECKPOINT_SIZE - 4);
+        checkpoint.putInt((int)crc.getValue());
+        ((Buffer)checkpoint).flip();
+        Path temporary = Paths.get(storeDirectoryName, CHECKPOINT_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            LogRecords.writeFully(channel, checkpoint, 0);
+            channel.force(false);
+        }
+        Files.move(temporary, Paths.get(storeDirectoryName, CHECKPOINT_FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(Paths.get(storeDirectoryName), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Appends the records to the write-ahead log, must be called while holding the wal lock.
+     */
+    private void appendToLog(final ByteBuffer records) throws StoreException {
+        try {
+            long size = records.remaining();
+            LogRecords.writeFully(walChannel, records, walPosition);
+            walPosition += size;
+            if (sync) {
+                walChannel.force(false);
+            }
+        } catch (IOException e) {
+            log.error("Error appending to write-ahead log " + walNumber, e);
+            throw new StoreException(e);
+        }
+    }
+
     private Key longToKey(long l) {
-        return new Key(String.valueOf(l).getBytes(StandardCharsets.UTF_8));
+        return new Key(l);
+    }
+
+    private long keyToLong(Key key) {
+        return key.toLong();
     }
 
     public Key getFirstKey() {
@@ -94,34 +353,110 @@ public class FileSystemKeyValueStore implements KeyValueStore {
     }
 
     private String keyToFileName(Key key) {
-        return storeDirectoryName + "/" + new String(key.getData(), StandardCharsets.UTF_8);
+        return storeDirectoryName + "/" + key.toLong();
     }
 
-    public Key add(final Value value) throws StoreException {
-        highestKey++;
-        Key key = longToKey(highestKey);
+    public Key getHighestKey() {
+        return longToKey(highestKey.get());
+    }
 
-        write(key, value, false);
+    public Key allocateKey() {
+        return longToKey(highestKey.incrementAndGet());
+    }
+
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
 
+    public Key add(final Value value) throws StoreException {
+        WriteBatch batch = createWriteBatch();
+        Key key = batch.add(value);
+        batch.commit();
         return key;
     }
 
     public Value read(final Key key) throws StoreException {
         String fileName = keyToFileName(key);
 
-        if (!Files.isRegularFile(Paths.get(fileName))) {
+        try {
+            return new Value(Files.readAllBytes(Paths.get(fileName)));
+        } catch (NoSuchFileException e) {
             return null;
+        } catch (IOException e) {
+            log.error("Error reading " + fileName, e);
+            throw new StoreException(e);
         }
+    }
 
+    public CompletableFuture<Value> readAsync(final Key key) {
+        String fileName = keyToFileName(key);
+
+        AsynchronousFileChannel channel;
+        long size;
         try {
-            return new Value(Files.readAllBytes(Paths.get(fileName)));
+            channel = AsynchronousFileChannel.open(Paths.get(fileName), Collections.singleton(StandardOpenOption.READ), executor);
+        } catch (NoSuchFileException e) {
+            return CompletableFuture.completedFuture(null);
         } catch (IOException e) {
             log.error("Error reading " + fileName, e);
-            throw new StoreException(e);
+            return Futures.failed(new StoreException(e));
+        }
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            close(channel, fileName);
+            log.error("Error reading " + fileName, e);
+            return Futures.failed(new StoreException(e));
+        }
+        if (size > Integer.MAX_VALUE) {
+            close(channel, fileName);
+            String message = "Error reading " + fileName + ", too large";
+            log.error(message);
+            return Futures.failed(new StoreException(message));
         }
+
+        CompletableFuture<Value> future = new CompletableFuture<>();
+        ByteBuffer buffer = ByteBuffer.allocate((int)size);
+        channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+            public void completed(final Integer bytes, final Void attachment) {
+                if (bytes >= 0 && buffer.hasRemaining()) {
+                    channel.read(buffer, buffer.position(), null, this);
+                    return;
+                }
+                close(channel, fileName);
+                // a file that is overwritten concurrently may be shorter than it was
+                byte[] data = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+                future.complete(new Value(data));
+            }
+            public void failed(final Throwable e, final Void attachment) {
+                close(channel, fileName);
+                log.error("Error reading " + fileName, e);
+                future.completeExceptionally(new StoreException(e instanceof Exception ? (Exception)e : new IOException(e)));
+            }
+        });
+        return future;
     }
 
-    private void write(final Key key, final Value value, boolean expected) throws StoreException {
+    private static void close(final AsynchronousFileChannel channel, final String fileName) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing " + fileName, e);
+        }
+    }
+
+    public CompletableFuture<Key> addAsync(final Value value) {
+        return Futures.supply(() -> add(value), executor);
+    }
+
+    public CompletableFuture<Void> writeAsync(final Key key, final Value value) {
+        return Futures.supply(() -> {
+            write(key, value);
+            return null;
+        }, executor);
+    }
+
+    private void write(final Key key, final Value value, boolean expected, boolean sync) throws StoreException {
         String fileName = keyToFileName(key);
 
         boolean exists = Files.isRegularFile(Paths.get(fileName));
@@ -132,10 +467,21 @@ public class FileSystemKeyValueStore implements KeyValueStore {
             log.error("SEVERE - unexpected value found while writing");
         }
 
+        writeFile(key, value, sync);
+    }
+
+    private void writeFile(final Key key, final Value value, boolean sync) throws StoreException {
+        String fileName = keyToFileName(key);
+
         try (FileOutputStream fos = new FileOutputStream(fileName)) {
             fos.write(value.getData());
-            stats.totalWrites++;
-            stats.totalBytesWritten += value.getData().length;
+            if (sync) {
+                fos.getFD().sync();
+            }
+            synchronized (stats) {
+                stats.totalWrites++;
+                stats.totalBytesWritten += value.getData().length;
+            }
         } catch (IOException e) {
             log.error("Error writing " + fileName, e);
             throw new StoreException(e);
@@ -143,19 +489,69 @@ public class FileSystemKeyValueStore implements KeyValueStore {
     }
 
     public void write(final Key key, final Value value) throws StoreException {
-        write(key, value, true);
+        WriteBatch batch = createWriteBatch();
+        batch.write(key, value);
+        batch.commit();
+    }
+
+    public WriteBatch createWriteBatch() {
+        return new BufferedWriteBatch(this);
+    }
+
+    private void flush(final List<BufferedWriteBatch> batches) throws StoreException {
+        if (wal) {
+            flushToLog(batches);
+            return;
+        }
+
+        boolean added = false;
+        for (BufferedWriteBatch batch : batches) {
+            for (BufferedWriteBatch.Write write : batch.getWrites()) {
+                write(write.key, write.value, !write.added, sync);
+                added |= write.added;
+            }
+        }
+        if (sync && added) {
+            // new files are only durable once the directory entry is
+            try {
+                syncDirectory();
+            } catch (IOException e) {
+                log.error("Error syncing " + storeDirectoryName, e);
+                throw new StoreException(e);
+            }
+        }
+        synchronized (stats) {
+            stats.totalCommits += batches.size();
+            if (sync) {
+                stats.totalSyncs++;
+            }
+        }
     }
 
     public void delete(final Key key) throws StoreException, IllegalArgumentException {
-        if (Arrays.equals(key.getData(), getFirstKey().getData())) {
+        if (keyToLong(key) == firstKey) {
             throw new IllegalArgumentException("Cannot delete first key");
         }
 
+        if (wal) {
+            synchronized (walLock) {
+                long l = keyToLong(key);
+                appendToLog(LogRecords.encode(l, null));
+                deleteFile(key);
+                unsynced.add(l);
+            }
+            return;
+        }
+
+        deleteFile(key);
+    }
+
+    private void deleteFile(final Key key) throws StoreException {
         String fileName = keyToFileName(key);
 
         try {
             Files.delete(Paths.get(fileName));
-        } catch (FileNotFoundException e) {
+        } catch (NoSuchFileException e) {
             // ok
         } catch (IOException e) {
             log.error("Error deleting " + fileName, e);
@@ -163,6 +559,107 @@ public class FileSystemKeyValueStore implements KeyValueStore {
         }
     }
 
+    public void compact(final Key horizon, final Predicate<Key> live) throws StoreException {
+        long reclaimed = 0;
+        List<Long> keys = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(storeDirectoryName))) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.isEmpty() && name.chars().allMatch(Character::isDigit)) {
+                    keys.add(Long.parseLong(name));
+                }
+            }
+            // without a write-ahead log a store that was not shut down cleanly finds the highest key by listing the
+            // directory, so the file with the highest key is kept
+            long highest = wal || keys.isEmpty() ? -1 : Collections.max(keys);
+            for (long l : keys) {
+                Key key = longToKey(l);
+                if (l == firstKey || l == highest || l > keyToLong(horizon) || live.test(key)) {
+                    continue;
+                }
+                try {
+                    reclaimed += Files.size(Paths.get(keyToFileName(key)));
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                delete(key);
+                compactionLimiter.acquire(LogRecords.size(null));
+            }
+        } catch (IOException e) {
+            log.error("Error compacting " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+        synchronized (stats) {
+            stats.totalBytesReclaimed += reclaimed;
+        }
+        log.info("FileSystemKeyValueStore reclaimed " + reclaimed + " bytes");
+    }
+
+    private void flushToLog(final List<BufferedWriteBatch> batches) throws StoreException {
+        synchronized (walLock) {
+            int size = LogRecords.HEADER_SIZE;
+            int count = 0;
+            for (BufferedWriteBatch batch : batches) {
+                for (BufferedWriteBatch.Write write : batch.getWrites()) {
+                    size += LogRecords.size(write.value.getData());
+                    count++;
+                }
+            }
+            // one group, so that replaying the log applies either all batches or none
+            ByteBuffer records = ByteBuffer.allocate(size);
+            LogRecords.encodeGroup(records, count);
+            for (BufferedWriteBatch batch : batches) {
+                for (BufferedWriteBatch.Write write : batch.getWrites()) {
+                    LogRecords.encode(records, keyToLong(write.key), write.value.getData());
+                }
+            }
+            ((Buffer)records).flip();
+            if (count > 0) {
+                appendToLog(records);
+            }
+
+            for (BufferedWriteBatch batch : batches) {
+                for (BufferedWriteBatch.Write write : batch.getWrites()) {
+                    write(write.key, write.value, !write.added, false);
+                    unsynced.add(keyToLong(write.key));
+                }
+            }
+            synchronized (stats) {
+                stats.totalCommits += batches.size();
+                if (sync) {
+                    stats.totalSyncs++;
+                }
+            }
+            if (walPosition >= walCheckpointSize) {
+                checkpoint();
+            }
+        }
+    }
+
+    public void shutdown() throws StoreException {
+        executor.shutdown();
+        synchronized (walLock) {
+            if (wal) {
+                checkpoint();
+                try {
+                    walChannel.close();
+                } catch (IOException e) {
+                    log.error("Error closing write-ahead log " + walNumber, e);
+                    throw new StoreException(e);
+                }
+                walChannel = null;
+                return;
+            }
+            try {
+                writeCheckpointFile(walNumber + 1);
+                syncDirectory();
+            } catch (IOException e) {
+                log.error("Error writing checkpoint in " + storeDirectoryName, e);
+                throw new StoreException(e);
+            }
+        }
+    }
+
     public Stamp generateStamp() {
         return TrivialStampGenerator.generateStamp();
     }
@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.StoreFactory;
+
+/**
+ * Helpers for the asynchronous methods of the stores. Futures fail with the {@link StoreException} itself, stages that
+ * cannot throw it wrap it in a {@link CompletionException}, which {@link #unwrap(Throwable)} removes again.
+ */
+final class Futures {
+
+    static final int DEFAULT_ASYNC_THREADS = 16;
+
+    /**
+     * A blocking call of a store.
+     */
+    interface StoreCall<T> {
+        T call() throws StoreException;
+    }
+
+    private Futures() {
+    }
+
+    /**
+     * Creates the pool of daemon threads that runs the blocking I/O of a store, sized by
+     * {@link StoreFactory#STORE_ASYNC_THREADS_KEY}.
+     * @throws NumberFormatException if the property is not a number
+     */
+    static ExecutorService newExecutor(final String name, final Properties properties) {
+        int threads = Integer.parseInt(properties.getProperty(StoreFactory.STORE_ASYNC_THREADS_KEY, String.valueOf(DEFAULT_ASYNC_THREADS)));
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the call on the executor.
+     */
+    static <T> CompletableFuture<T> supply(final StoreCall<T> call, final Executor executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> complete(future, call));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the call right away, for stores that do not block.
+     */
+    static <T> CompletableFuture<T> completed(final StoreCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        complete(future, call);
+        return future;
+    }
+
+    private static <T> void complete(final CompletableFuture<T> future, final StoreCall<T> call) {
+        try {
+            future.complete(call.call());
+        } catch (StoreException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    static <T> CompletableFuture<T> failed(final Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Returns the exception a future failed with, without the {@link CompletionException} that dependent stages wrap
+     * it in.
+     */
+    static Throwable unwrap(final Throwable e) {
+        Throwable cause = e;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+}
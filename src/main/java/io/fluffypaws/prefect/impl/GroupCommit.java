@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.fluffypaws.prefect.api.StoreException;
+
+/**
+ * Writes concurrently committed batches together. The first thread to commit becomes the leader and flushes its own
+ * batch, batches committed in the meantime queue up and are flushed as one group by the next leader, so a store that
+ * syncs after every flush needs one sync per group instead of one per batch.
+ */
+class GroupCommit {
+
+    interface Flush {
+        void flush(List<BufferedWriteBatch> batches) throws StoreException;
+    }
+
+    private final Flush flush;
+    private List<BufferedWriteBatch> pending = new ArrayList<>();
+    private boolean flushing = false;
+
+    GroupCommit(final Flush flush) {
+        this.flush = flush;
+    }
+
+    void commit(final BufferedWriteBatch batch) throws StoreException {
+        List<BufferedWriteBatch> group;
+        synchronized (this) {
+            pending.add(batch);
+            boolean interrupted = false;
+            while (flushing && !batch.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (batch.done) {
+                if (batch.failure != null) {
+                    throw new StoreException(batch.failure);
+                }
+                return;
+            }
+            flushing = true;
+            group = pending;
+            pending = new ArrayList<>();
+        }
+
+        StoreException failure = null;
+        try {
+            flush.flush(group);
+        } catch (StoreException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new StoreException(e);
+        }
+
+        synchronized (this) {
+            for (BufferedWriteBatch b : group) {
+                b.done = true;
+                b.failure = failure;
+            }
+            flushing = false;
+            notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
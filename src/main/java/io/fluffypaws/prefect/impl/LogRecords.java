@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.impl;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import io.fluffypaws.prefect.api.StoreException;
+
+/**
+ * Format of the records in append-only log files (segments and write-ahead logs):
+ * key (8 bytes) + length (4 bytes, -1 for a tombstone) + CRC32 of key, length and data (4 bytes) + data.
+ *
+ * Records are written in groups that are applied atomically: a group starts with a header record whose key is the
+ * number of records in the group and whose length is -2, followed by the records themselves.
+ *
+ * A record that is cut off or does not match its checksum marks the end of the log, everything after it was never
+ * completely written. A group that is not followed by all of its records is discarded as a whole.
+ */
+final class LogRecords {
+
+    static final int HEADER_SIZE = 16;
+    static final int TOMBSTONE = -1;
+    static final int GROUP = -2;
+
+    private static final int CHECKSUM_OFFSET = 12;
+
+    interface Visitor {
+        /**
+         * @param data the data of the record, null for a tombstone
+         */
+        void visit(long key, long offset, ByteBuffer data) throws StoreException;
+    }
+
+    private LogRecords() {
+    }
+
+    static int size(final byte[] data) {
+        return HEADER_SIZE + (data == null ? 0 : data.length);
+    }
+
+    /**
+     * Appends the record to the buffer, which must have {@link #size(byte[])} bytes remaining.
+     */
+    static void encode(final ByteBuffer buffer, final long key, final byte[] data) {
+        encode(buffer, key, data == null ? TOMBSTONE : data.length, data);
+    }
+
+    /**
+     * Appends the header of a group of records to the buffer, which must have {@link #HEADER_SIZE} bytes remaining.
+     */
+    static void encodeGroup(final ByteBuffer buffer, final int count) {
+        encode(buffer, count, GROUP, null);
+    }
+
+    private static void encode(final ByteBuffer buffer, final long key, final int length, final byte[] data) {
+        int start = buffer.position();
+        buffer.putLong(key);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        if (data != null) {
+            buffer.put(data);
+        }
+        buffer.putInt(start + CHECKSUM_OFFSET, checksum(buffer, start, buffer.position()));
+    }
+
+    /**
+     * Encodes a group that consists of the one record, its header takes {@link #HEADER_SIZE} bytes before the record.
+     */
+    static ByteBuffer encode(final long key, final byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size(data));
+        encodeGroup(buffer, 1);
+        encode(buffer, key, data);
+        ((Buffer)buffer).flip();
+        return buffer;
+    }
+
+    private static int checksum(final ByteBuffer buffer, final int start, final int end) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = buffer.duplicate();
+        ((Buffer)header).limit(start + CHECKSUM_OFFSET).position(start);
+        crc.update(header);
+        ByteBuffer data = buffer.duplicate();
+        ((Buffer)data).limit(end).position(start + HEADER_SIZE);
+        crc.update(data);
+        return (int)crc.getValue();
+    }
+
+    static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Visits the records of the complete groups in the channel starting at the given position, the records of a group
+     * are only visited once all of them have been read.
+     * @return the position after the last complete group
+     */
+    static long scan(final FileChannel channel, long position, final Visitor visitor) throws IOException, StoreException {
+        long size = channel.size();
+        long end = position;
+        int remaining = 0;
+        List<long[]> positions = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            ((Buffer)header).clear();
+            readFully(channel, header, position);
+            long key = header.getLong(0);
+            int length = header.getInt(8);
+            if (length < GROUP || position + HEADER_SIZE + Math.max(length, 0) > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + Math.max(length, 0));
+            readFully(channel, record, position);
+            if (checksum(record, 0, record.capacity()) != header.getInt(CHECKSUM_OFFSET)) {
+                break;
+            }
+            position += record.capacity();
+            // a group header within a group, or a record outside of one, is left over from a torn group
+            if (length == GROUP) {
+                if (remaining > 0 || key < 1 || key > Integer.MAX_VALUE) {
+                    break;
+                }
+                remaining = (int)key;
+                continue;
+            }
+            if (remaining == 0) {
+                break;
+            }
+            ByteBuffer data = null;
+            if (length != TOMBSTONE) {
+                ((Buffer)record).position(HEADER_SIZE);
+                data = record.slice();
+            }
+            positions.add(new long[] { key, position - record.capacity() });
+            records.add(data);
+            if (--remaining == 0) {
+                for (int i = 0; i < records.size(); i++) {
+                    visitor.visit(positions.get(i)[0], positions.get(i)[1], records.get(i));
+                }
+                positions.clear();
+                records.clear();
+                end = position;
+            }
+        }
+        return end;
+    }
+
+}
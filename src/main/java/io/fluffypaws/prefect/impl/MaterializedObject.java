@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.fluffypaws.prefect.api.ImmutableObject;
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * State of an object copied out of the store, see {@link Prefetcher}: reading it does not take locks and does no I/O.
+ * Only the children that were prefetched are held, the others are read from the store when they are asked for.
+ */
+class MaterializedObject implements ImmutableObject {
+
+    private final ObjectStoreImpl objectStore;
+    private final Stamp view;
+    private final Key key;
+    private final Stamp creation;
+    private final Stamp stamp;
+    private final Value value;
+    private final LinkedHashMap<String, Key> childKeys;
+    private final Map<String, MaterializedObject> children = new HashMap<>();
+
+    /**
+     * @param view the stamp the state was taken at, null for the current state
+     */
+    MaterializedObject(final ObjectStoreImpl objectStore, final Stamp view, final Key key, final Stamp creation, final Stamp stamp, final Value value, final LinkedHashMap<String, Key> childKeys) {
+        this.objectStore = objectStore;
+        this.view = view;
+        this.key = key;
+        this.creation = creation;
+        this.stamp = stamp;
+        this.value = value;
+        this.childKeys = childKeys;
+    }
+
+    Map<String, Key> getChildKeys() {
+        return childKeys;
+    }
+
+    void setChild(final String name, final MaterializedObject child) {
+        children.put(name, child);
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    public Stamp getCreation() {
+        return creation;
+    }
+
+    public Stamp getStamp() {
+        return stamp;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public Iterator<String> getChildNames() {
+        return new ArrayList<>(childKeys.keySet()).iterator();
+    }
+
+    public ImmutableObject getChild(final String name) throws StoreException {
+        MaterializedObject child = children.get(name);
+        if (child != null) {
+            return child;
+        }
+        Key childKey = childKeys.get(name);
+        if (childKey == null) {
+            return null;
+        }
+        return view == null ? ObjectImpl.read(objectStore, childKey) : ObjectImpl.read(objectStore, childKey).materialize(view);
+    }
+
+}
@@ -16,20 +16,18 @@
 
 package io.fluffypaws.prefect.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +39,7 @@ import io.fluffypaws.prefect.api.Object;
 import io.fluffypaws.prefect.api.Stamp;
 import io.fluffypaws.prefect.api.StoreException;
 import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
 
 class ObjectImpl implements io.fluffypaws.prefect.api.Object {
 
@@ -50,7 +49,7 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
         ADD_CHILD, DELETE_CHILD, SET_VALUE
     }
 
-    static class Patch implements Serializable {
+    static class Patch {
         public Stamp stamp;
         public PatchType type;
         public String childName;
@@ -66,69 +65,185 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
     /* Types:
      * - initial object: stores value + stamp
      * - object + patches: stores value + stamp + key for patches
+     * - snapshot: stores value + stamp + materialized state + key for the older history + key for newer patches
      * - object + slices: stores value + stamp + key for slices
      * - branched object: array of (ancestor OHS key + stamp) + key for slices
      */
     enum ObjectHistoryStoreType {
-        InitialObject, ObjectPlusPatches
+        InitialObject, ObjectPlusPatches, Snapshot
     }
 
-    static class History implements Serializable {
+    static class History {
         Stamp stamp;
         Value value;
         Key next;
     }
 
+    /**
+     * Materialized state of an object once its patch list has been compacted, see
+     * {@link ObjectStoreImpl#getCompactingThreshold()}. The record that described the object before compacting is kept
+     * under {@link #previous} so that the state at earlier stamps can still be reconstructed. Once the history has been
+     * pruned, see {@link ObjectHistoryStore#prune(Key, Stamp, WriteBatch, List)}, there is no previous record.
+     */
+    static class Snapshot {
+        Stamp stamp;
+        Key valueKey;
+        LinkedHashMap<String, Key> children;
+        Key previous;
+    }
+
+    /**
+     * Patches are stored in a chain of blocks: {@link History#next} points at the newest block and every block points
+     * at the one before it. Only the newest block is rewritten when a patch is added, once it holds
+     * {@link ObjectStoreImpl#getPatchBlockSize()} patches a new block is started.
+     */
+    static class PatchBlock {
+        final Key previous;
+        final ArrayList<Patch> patches;
+        PatchBlock(Key previous, ArrayList<Patch> patches) {
+            this.previous = previous;
+            this.patches = patches;
+        }
+    }
+
+    /**
+     * Returns the number of leading patches with a stamp lower than or equal to the given stamp, patches are always
+     * appended in stamp order.
+     */
+    static int countUpTo(final List<Patch> patches, final Stamp stamp) {
+        int low = 0;
+        int high = patches.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (patches.get(middle).stamp.compareTo(stamp) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the children of an {@link ObjectPlusPatchesStore}: the current name to key map, and for every name the
+     * patches that added or deleted it so that the key at an earlier stamp can be found with a binary search.
+     */
+    static class ChildIndex {
+        private final Snapshot base;
+        private final LinkedHashMap<String, Key> current;
+        private final HashMap<String, ArrayList<Patch>> changes = new HashMap<>();
+        ChildIndex(final Snapshot base, final List<Patch> patches) {
+            this.base = base;
+            this.current = base == null ? new LinkedHashMap<>() : new LinkedHashMap<>(base.children);
+            for (Patch p : patches) {
+                add(p);
+            }
+        }
+        void add(final Patch patch) {
+            if (patch.type == PatchType.ADD_CHILD) {
+                current.put(patch.childName, patch.key);
+            } else if (patch.type == PatchType.DELETE_CHILD) {
+                current.remove(patch.childName);
+            } else {
+                return;
+            }
+            ArrayList<Patch> list = changes.get(patch.childName);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                changes.put(patch.childName, list);
+            }
+            list.add(patch);
+        }
+        Key get(final String name) {
+            return current.get(name);
+        }
+        Key get(final String name, final Stamp stamp) {
+            ArrayList<Patch> list = changes.get(name);
+            if (list != null) {
+                int count = countUpTo(list, stamp);
+                if (count > 0) {
+                    return list.get(count - 1).key;
+                }
+            }
+            return base == null ? null : base.children.get(name);
+        }
+        Iterator<String> getNames() {
+            return new ArrayList<>(current.keySet()).iterator();
+        }
+        Iterator<String> getNames(final Stamp stamp) {
+            LinkedHashSet<String> candidates = new LinkedHashSet<>();
+            if (base != null) {
+                candidates.addAll(base.children.keySet());
+            }
+            candidates.addAll(changes.keySet());
+            ArrayList<String> names = new ArrayList<>();
+            for (String name : candidates) {
+                if (get(name, stamp) != null) {
+                    names.add(name);
+                }
+            }
+            return names.iterator();
+        }
+    }
+
     interface ObjectHistoryStore extends ImmutableObject {
-        ObjectHistoryStore addPatch(Patch patch) throws StoreException;
-        ImmutableObject get(Stamp stamp);
+        ObjectHistoryStore addPatch(Patch patch, WriteBatch batch) throws StoreException;
+        ObjectHistoryStore get(Stamp stamp) throws StoreException;
         Object getChild(final String name) throws StoreException;
+        /**
+         * @return the key of the child with the given name, or null if there is no such child
+         */
+        Key getChildKey(String name);
+        /**
+         * Reads the value without waiting for it, see {@link KeyValueStore#readAsync(Key)}.
+         */
+        CompletableFuture<Value> getValueAsync();
+        /**
+         * Collapses the history up to and including the retention stamp, so that the state at that stamp is the oldest
+         * one that can be read. The record is rewritten under the given key, which is the key of the object itself or
+         * of a record that a snapshot replaced.
+         * @param children collects the keys of the children the remaining history refers to
+         * @return the pruned store
+         */
+        ObjectHistoryStore prune(Key recordKey, Stamp retention, WriteBatch batch, List<Key> children) throws StoreException;
     }
 
     static class InitialObjectStore implements ObjectHistoryStore {
-        private KeyValueStore store;
+        private ObjectStoreImpl objectStore;
         private Key key;
         private History history;
-        private InitialObjectStore(final KeyValueStore store, final Key key, final History history) {
-            this.store = store;
+        private InitialObjectStore(final ObjectStoreImpl objectStore, final Key key, final History history) {
+            this.objectStore = objectStore;
             this.key = key;
             this.history = history;
         }
-        public static ObjectHistoryStore read(final KeyValueStore store, final Key key, final ObjectInput objectInput) throws StoreException {
+        public static ObjectHistoryStore read(final ObjectStoreImpl objectStore, final Key key, final ByteBuffer buffer) throws StoreException {
             try {
-                History history = (History)objectInput.readObject();
-                return new InitialObjectStore(store, key, history);
-            } catch (IOException | ClassNotFoundException e) {
-                log.error("Error deserializing " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
+                History history = objectStore.getCodec().decodeHistory(buffer);
+                return new InitialObjectStore(objectStore, key, history);
+            } catch (StoreException e) {
+                log.error("Error deserializing " + key, e);
+                throw e;
             }
         }
-        public static ObjectHistoryStore create(final KeyValueStore store, Key key, final Value value) throws StoreException {
+        public static ObjectHistoryStore create(final ObjectStoreImpl objectStore, Key key, final Value value, final Stamp stamp, final WriteBatch batch) throws StoreException {
             History history = new History();
-            history.stamp = store.generateStamp();
+            history.stamp = stamp;
             history.value = value;
             history.next = null;
 
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 ObjectOutput out = new ObjectOutputStream(bos)) {
-                ObjectHistoryStoreType type = ObjectHistoryStoreType.InitialObject;
-                out.writeObject(type);
-                out.writeObject(history);
-                if (key != null) {
-                    store.write(key, new Value(bos.toByteArray()));
-                } else {
-                    key = store.add(new Value(bos.toByteArray()));
-                }
-                return new InitialObjectStore(store, key, history);
-            } catch (IOException e) {
-                log.error("Error serializing " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
+            Value record = objectStore.getCodec().encodeObject(ObjectHistoryStoreType.InitialObject, history, null);
+            if (key != null) {
+                batch.write(key, record);
+            } else {
+                key = batch.add(record);
             }
+            return new InitialObjectStore(objectStore, key, history);
         }
-        public ObjectHistoryStore addPatch(final Patch patch) throws StoreException {
-            return ObjectPlusPatchesStore.create(store, key, history, patch);
+        public ObjectHistoryStore addPatch(final Patch patch, final WriteBatch batch) throws StoreException {
+            return ObjectPlusPatchesStore.create(objectStore, key, history, patch, batch);
         }
-        public ImmutableObject get(final Stamp stamp) {
+        public ObjectHistoryStore get(final Stamp stamp) {
             if (history.stamp.equals(stamp)) {
                 return this;
             } else {
@@ -138,6 +253,15 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
         public Object getChild(final String name) throws StoreException {
             return null;
         }
+        public Key getChildKey(final String name) {
+            return null;
+        }
+        public CompletableFuture<Value> getValueAsync() {
+            return CompletableFuture.completedFuture(history.value);
+        }
+        public ObjectHistoryStore prune(final Key recordKey, final Stamp retention, final WriteBatch batch, final List<Key> children) {
+            return this;
+        }
         public Key getKey() {
             return key;
         }
@@ -156,139 +280,298 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
     }
 
     static class ObjectPlusPatchesStore implements ObjectHistoryStore {
+        private ObjectStoreImpl objectStore;
         private KeyValueStore store;
         private Key key;
         private History history;
         private ArrayList<Patch> patches;
+        private int tailStart;
+        private Key tailPrevious;
+        private Snapshot base;
+        private ChildIndex childIndex;
         private Stamp snapshotStamp;
-        private ObjectPlusPatchesStore(final KeyValueStore store, final Key key, final History history, final ArrayList<Patch> patches, Stamp snapshotStamp) {
-            this.store = store;
+        private int snapshotCount;
+        private ObjectPlusPatchesStore(final ObjectStoreImpl objectStore, final Key key, final History history, final ArrayList<Patch> patches, final int tailStart, final Key tailPrevious, final Snapshot base, Stamp snapshotStamp) {
+            this.objectStore = objectStore;
+            this.store = objectStore.getKeyValueStore();
             this.key = key;
             this.history = history;
             this.patches = patches;
+            this.tailStart = tailStart;
+            this.tailPrevious = tailPrevious;
+            this.base = base;
             this.snapshotStamp = snapshotStamp;
         }
-        public static ObjectPlusPatchesStore read(final KeyValueStore store, final Key key, final ObjectInput objectInput) throws StoreException {
+        public static ObjectPlusPatchesStore read(final ObjectStoreImpl objectStore, final Key key, final ByteBuffer buffer, final boolean compacted) throws StoreException {
+            History history = decodeHistory(objectStore, key, buffer);
+            Snapshot base = compacted ? decodeSnapshot(objectStore, key, buffer) : null;
+            ArrayList<PatchBlock> blocks = new ArrayList<>();
+            Key blockKey = history.next;
+            while (blockKey != null) {
+                PatchBlock block = decodePatchBlock(objectStore, blockKey, objectStore.getKeyValueStore().read(blockKey));
+                blocks.add(block);
+                blockKey = block.previous;
+            }
+            return fromBlocks(objectStore, key, history, base, blocks);
+        }
+        /**
+         * Reads the record the same way as {@link #read(ObjectStoreImpl, Key, ByteBuffer, boolean)}, without waiting
+         * for the patch blocks. The blocks are still read one after the other, every block refers to the one before it.
+         */
+        public static CompletableFuture<ObjectHistoryStore> readAsync(final ObjectStoreImpl objectStore, final Key key, final ByteBuffer buffer, final boolean compacted) {
+            History history;
+            Snapshot base;
             try {
-                History history = (History)objectInput.readObject();
-                Value serializedPatches = store.read(history.next);
-                try (ByteArrayInputStream bis = new ByteArrayInputStream(serializedPatches.getData());
-                     ObjectInput patchesObjectInput = new ObjectInputStream(bis) {
-                     }) {
-                    ArrayList<Patch> patches = (ArrayList<Patch>)patchesObjectInput.readObject();
-                    return new ObjectPlusPatchesStore(store, key, history, patches, null);
-                } catch (IOException | ClassNotFoundException e) {
-                    log.error("Error deserializing patches from " + new String(history.next.getData(), StandardCharsets.UTF_8), e);
-                    throw new StoreException(e);
+                history = decodeHistory(objectStore, key, buffer);
+                base = compacted ? decodeSnapshot(objectStore, key, buffer) : null;
+            } catch (StoreException e) {
+                return Futures.failed(e);
+            }
+            return readBlocksAsync(objectStore, history.next, new ArrayList<>()).thenApply(blocks -> fromBlocks(objectStore, key, history, base, blocks));
+        }
+        private static CompletableFuture<ArrayList<PatchBlock>> readBlocksAsync(final ObjectStoreImpl objectStore, final Key blockKey, final ArrayList<PatchBlock> blocks) {
+            if (blockKey == null) {
+                return CompletableFuture.completedFuture(blocks);
+            }
+            return objectStore.getKeyValueStore().readAsync(blockKey).thenCompose(serializedBlock -> {
+                PatchBlock block;
+                try {
+                    block = decodePatchBlock(objectStore, blockKey, serializedBlock);
+                } catch (StoreException e) {
+                    throw new CompletionException(e);
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                log.error("Error deserializing " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
+                blocks.add(block);
+                return readBlocksAsync(objectStore, block.previous, blocks);
+            });
+        }
+        private static History decodeHistory(final ObjectStoreImpl objectStore, final Key key, final ByteBuffer buffer) throws StoreException {
+            try {
+                return objectStore.getCodec().decodeHistory(buffer);
+            } catch (StoreException e) {
+                log.error("Error deserializing " + key, e);
+                throw e;
+            }
+        }
+        private static Snapshot decodeSnapshot(final ObjectStoreImpl objectStore, final Key key, final ByteBuffer buffer) throws StoreException {
+            try {
+                return objectStore.getCodec().decodeSnapshot(buffer);
+            } catch (StoreException e) {
+                log.error("Error deserializing " + key, e);
+                throw e;
+            }
+        }
+        private static PatchBlock decodePatchBlock(final ObjectStoreImpl objectStore, final Key blockKey, final Value serializedBlock) throws StoreException {
+            if (serializedBlock == null) {
+                // only seen by readers that do not hold the lock, the object was pruned and compacted meanwhile
+                throw new StoreException("Cannot find patches " + blockKey);
+            }
+            try {
+                return objectStore.getCodec().decodePatchBlock(serializedBlock.getBuffer());
+            } catch (StoreException e) {
+                log.error("Error deserializing patches from " + blockKey, e);
+                throw e;
+            }
+        }
+        /**
+         * Creates the store from the patch blocks, newest block first.
+         */
+        private static ObjectPlusPatchesStore fromBlocks(final ObjectStoreImpl objectStore, final Key key, final History history, final Snapshot base, final List<PatchBlock> blocks) {
+            int count = 0;
+            for (PatchBlock block : blocks) {
+                count += block.patches.size();
+            }
+            ArrayList<Patch> patches = new ArrayList<>(count);
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                patches.addAll(blocks.get(i).patches);
+            }
+            if (blocks.isEmpty()) {
+                return new ObjectPlusPatchesStore(objectStore, key, history, patches, 0, null, base, null);
             }
+            PatchBlock tail = blocks.get(0);
+            return new ObjectPlusPatchesStore(objectStore, key, history, patches, count - tail.patches.size(), tail.previous, base, null);
         }
-        public static ObjectHistoryStore create(final KeyValueStore store, Key key, History history, final Patch patch) throws StoreException {
+        public static ObjectHistoryStore create(final ObjectStoreImpl objectStore, Key key, History history, final Patch patch, final WriteBatch batch) throws StoreException {
             ArrayList<Patch> patches = new ArrayList<>();
             patches.add(patch);
 
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 ObjectOutput out = new ObjectOutputStream(bos)) {
-                out.writeObject(patches);
-                history.next = store.add(new Value(bos.toByteArray()));
-            } catch (IOException e) {
-                log.error("Error serializing initial patch for " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
-            }
-
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 ObjectOutput out = new ObjectOutputStream(bos)) {
-                ObjectHistoryStoreType type = ObjectHistoryStoreType.ObjectPlusPatches;
-                out.writeObject(type);
-                out.writeObject(history);
-                store.write(key, new Value(bos.toByteArray()));
-                return new ObjectPlusPatchesStore(store, key, history, patches, null);
-            } catch (IOException e) {
-                log.error("Error serializing history for " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
-            }
-        }
-        private Iterable<Patch> getAvailablePatches() {
-            if (snapshotStamp == null) {
-                return patches;
-            } else {
-                return new Iterable<Patch>() {
-                    @Override
-                    public Iterator<Patch> iterator() {
-                        return new Iterator<Patch>() {
-                            Iterator<Patch> iterator = patches.iterator();
-                            Patch next = null;
-
-                            boolean findNext() {
-                                if (next != null) {
-                                    return true;
-                                }
-                                while (iterator.hasNext()) {
-                                    next = iterator.next();
-                                    if (next.stamp.compareTo(snapshotStamp) <= 0) {
-                                        return true;
-                                    }
-                                }
-                                return false;
-                            }
-
-                            @Override
-                            public boolean hasNext() {
-                                return findNext();
-                            }
-
-                            @Override
-                            public Patch next() {
-                                if (findNext()) {
-                                    Patch value = next;
-                                    next = null;
-                                    return value;
-                                } else {
-                                    throw new NoSuchElementException();
-                                }
-                            }
-                        };
-                    }
-                };
-            }
-        }
-        public ObjectHistoryStore addPatch(final Patch patch) throws StoreException {
+            history.next = batch.add(objectStore.getCodec().encodePatchBlock(null, patches));
+            batch.write(key, objectStore.getCodec().encodeObject(ObjectHistoryStoreType.ObjectPlusPatches, history, null));
+            return new ObjectPlusPatchesStore(objectStore, key, history, patches, 0, null, null, null);
+        }
+        /**
+         * Adds a new object that has all its children right from the start: a snapshot that was never changed, so
+         * it has neither patches nor a previous record.
+         * @param valueKey the key the value of the object was already stored under, or null if it has no value
+         * @return the key of the new object
+         */
+        public static Key createWithChildren(final ObjectStoreImpl objectStore, final Key valueKey, final Stamp stamp, final LinkedHashMap<String, Key> children, final WriteBatch batch) throws StoreException {
+            History history = new History();
+            history.stamp = stamp;
+            history.value = null;
+            history.next = null;
+            Snapshot snapshot = new Snapshot();
+            snapshot.stamp = stamp;
+            snapshot.valueKey = valueKey;
+            snapshot.children = children;
+            snapshot.previous = null;
+            return batch.add(objectStore.getCodec().encodeObject(ObjectHistoryStoreType.Snapshot, history, snapshot));
+        }
+        private ObjectHistoryStoreType getType() {
+            return base == null ? ObjectHistoryStoreType.ObjectPlusPatches : ObjectHistoryStoreType.Snapshot;
+        }
+        /**
+         * Returns the number of patches visible in this store, a view on an earlier stamp only sees a prefix of the
+         * patches. Note that the patch list is shared with the store the view was taken from, which may still grow.
+         */
+        private int getAvailableCount() {
+            return snapshotStamp == null ? patches.size() : snapshotCount;
+        }
+        public ObjectHistoryStore addPatch(final Patch patch, final WriteBatch batch) throws StoreException {
+            int threshold = objectStore.getCompactingThreshold();
+            if (threshold > 0 && patches.size() >= threshold) {
+                return compact(patch, batch);
+            }
+
             patches.add(patch);
+            if (childIndex != null) {
+                childIndex.add(patch);
+            }
 
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                 ObjectOutput out = new ObjectOutputStream(bos)) {
-                out.writeObject(patches);
-                store.write(history.next, new Value(bos.toByteArray()));
+            if (history.next == null || patches.size() - tailStart > objectStore.getPatchBlockSize()) {
+                tailStart = patches.size() - 1;
+                tailPrevious = history.next;
+                history.next = batch.add(objectStore.getCodec().encodePatchBlock(tailPrevious, patches.subList(tailStart, patches.size())));
+                batch.write(key, objectStore.getCodec().encodeObject(getType(), history, base));
+            } else {
+                batch.write(history.next, objectStore.getCodec().encodePatchBlock(tailPrevious, patches.subList(tailStart, patches.size())));
+            }
+            return this;
+        }
+        /**
+         * Folds the current patches and the given patch into a snapshot. The current record moves to a new key that
+         * the snapshot refers to, the object itself continues with an empty patch list on top of the snapshot.
+         */
+        private ObjectHistoryStore compact(final Patch patch, final WriteBatch batch) throws StoreException {
+            Snapshot snapshot = new Snapshot();
+            snapshot.stamp = patch.stamp;
+            snapshot.valueKey = base == null ? null : base.valueKey;
+            snapshot.children = base == null ? new LinkedHashMap<>() : new LinkedHashMap<>(base.children);
+            for (Patch p : patches) {
+                apply(snapshot, p);
+            }
+            apply(snapshot, patch);
+            snapshot.previous = batch.add(objectStore.getCodec().encodeObject(getType(), history, base));
+
+            History compacted = new History();
+            compacted.stamp = history.stamp;
+            compacted.value = history.value;
+            compacted.next = null;
+            batch.write(key, objectStore.getCodec().encodeObject(ObjectHistoryStoreType.Snapshot, compacted, snapshot));
+            return new ObjectPlusPatchesStore(objectStore, key, compacted, new ArrayList<>(), 0, null, snapshot, null);
+        }
+        /**
+         * Folds the patches up to and including the retention stamp into a snapshot without a previous record, and
+         * writes the remaining patches to new blocks. If the snapshot is newer than the retention stamp the record it
+         * replaced is pruned instead, this record is kept as it is.
+         */
+        public ObjectHistoryStore prune(final Key recordKey, final Stamp retention, final WriteBatch batch, final List<Key> children) throws StoreException {
+            if (base != null && base.stamp.isAfter(retention)) {
+                addChildKeys(base.children.values(), patches, children);
+                Value previous = base.previous == null ? null : store.read(base.previous);
+                // the previous record is gone if an earlier compaction already deleted it
+                if (previous != null) {
+                    ObjectImpl.readHistoryStore(objectStore, key, previous).prune(base.previous, retention, batch, children);
+                }
                 return this;
-            } catch (IOException e) {
-                log.error("Error serializing patches for " + new String(key.getData(), StandardCharsets.UTF_8), e);
-                throw new StoreException(e);
+            }
+
+            int count = countUpTo(patches, retention);
+            Snapshot snapshot = new Snapshot();
+            snapshot.stamp = count > 0 ? patches.get(count - 1).stamp : base == null ? history.stamp : base.stamp;
+            snapshot.valueKey = base == null ? null : base.valueKey;
+            snapshot.children = base == null ? new LinkedHashMap<>() : new LinkedHashMap<>(base.children);
+            for (Patch p : patches.subList(0, count)) {
+                apply(snapshot, p);
+            }
+            snapshot.previous = null;
+            ArrayList<Patch> retained = new ArrayList<>(patches.subList(count, patches.size()));
+            addChildKeys(snapshot.children.values(), retained, children);
+            if (count == 0 && (base == null || base.previous == null)) {
+                return this;
+            }
+
+            History pruned = new History();
+            pruned.stamp = history.stamp;
+            pruned.value = snapshot.valueKey == null ? history.value : null;
+            pruned.next = null;
+            int retainedTailStart = 0;
+            Key retainedTailPrevious = null;
+            for (int start = 0; start < retained.size(); start += objectStore.getPatchBlockSize()) {
+                retainedTailStart = start;
+                retainedTailPrevious = pruned.next;
+                int end = Math.min(start + objectStore.getPatchBlockSize(), retained.size());
+                pruned.next = batch.add(objectStore.getCodec().encodePatchBlock(retainedTailPrevious, retained.subList(start, end)));
+            }
+            batch.write(recordKey, objectStore.getCodec().encodeObject(ObjectHistoryStoreType.Snapshot, pruned, snapshot));
+            return new ObjectPlusPatchesStore(objectStore, key, pruned, retained, retainedTailStart, retainedTailPrevious, snapshot, null);
+        }
+        private static void addChildKeys(final Collection<Key> state, final List<Patch> patches, final List<Key> children) {
+            children.addAll(state);
+            for (Patch p : patches) {
+                if (p.type == PatchType.ADD_CHILD) {
+                    children.add(p.key);
+                }
             }
         }
-        public ImmutableObject get(final Stamp stamp) {
+        private static void apply(final Snapshot snapshot, final Patch patch) {
+            switch (patch.type) {
+                case SET_VALUE:
+                    snapshot.valueKey = patch.key;
+                    break;
+                case ADD_CHILD:
+                    snapshot.children.put(patch.childName, patch.key);
+                    break;
+                case DELETE_CHILD:
+                    snapshot.children.remove(patch.childName);
+                    break;
+            }
+        }
+        public ObjectHistoryStore get(final Stamp stamp) throws StoreException {
             if (history.stamp.isAfter(stamp)) {
                 return null;
             }
-            return new ObjectPlusPatchesStore(store, key, history, patches, stamp);
-        }
-        public Object getChild(final String name) throws StoreException {
-            Key key = null;
-            for (Patch p : getAvailablePatches()) {
-                if (p.type == PatchType.ADD_CHILD && p.childName.equals(name)) {
-                    key = p.key;
-                } else if (p.type == PatchType.DELETE_CHILD && p.childName.equals(name)) {
-                    key = null;
+            if (base != null && base.stamp.isAfter(stamp)) {
+                // the previous record is gone if it was pruned, or deleted by a compaction that kept no older history
+                Value previous = base.previous == null ? null : store.read(base.previous);
+                if (previous == null) {
+                    String message = "History of " + key + " before " + base.stamp + " has been pruned";
+                    log.warn(message);
+                    throw new StoreException(message);
                 }
+                return ObjectImpl.readHistoryStore(objectStore, key, previous).get(stamp);
             }
+            ObjectPlusPatchesStore view = new ObjectPlusPatchesStore(objectStore, key, history, patches, tailStart, tailPrevious, base, stamp);
+            view.childIndex = getChildIndex();
+            view.snapshotCount = countUpTo(patches, stamp);
+            return view;
+        }
+        private synchronized ChildIndex getChildIndex() {
+            if (childIndex == null) {
+                childIndex = new ChildIndex(base, patches);
+            }
+            return childIndex;
+        }
+        public Object getChild(final String name) throws StoreException {
+            Key key = getChildKey(name);
             if (key == null) {
                 return null;
             } else {
-                return ObjectImpl.read(store, key);
+                return ObjectImpl.read(objectStore, key);
             }
         }
+        public Key getChildKey(final String name) {
+            return snapshotStamp == null ? getChildIndex().get(name) : getChildIndex().get(name, snapshotStamp);
+        }
         public Key getKey() {
             return key;
         }
@@ -296,93 +579,251 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
             return history.stamp;
         }
         public Stamp getStamp() throws StoreException {
-            Stamp latest = history.stamp;
-            for (Patch p : getAvailablePatches()) {
-                latest = p.stamp;
+            int count = getAvailableCount();
+            if (count > 0) {
+                return patches.get(count - 1).stamp;
             }
-            return latest;
+            return base == null ? history.stamp : base.stamp;
         }
-        public Value getValue() throws StoreException {
-            Key latest = null;
-            for (Patch p : getAvailablePatches()) {
-                if (p.type == PatchType.SET_VALUE)
-                latest = p.key;
+        /**
+         * Returns the key of the value that was set last, or null if the value was never set after creating the object.
+         */
+        private Key getValueKey() {
+            for (int i = getAvailableCount() - 1; i >= 0; i--) {
+                Patch p = patches.get(i);
+                if (p.type == PatchType.SET_VALUE) {
+                    return p.key;
+                }
             }
+            return base == null ? null : base.valueKey;
+        }
+        public Value getValue() throws StoreException {
+            Key latest = getValueKey();
             if (latest == null) {
                 return history.value;
             } else {
                 return store.read(latest);
             }
         }
-        public Iterator<String> getChildNames() throws StoreException {
-            /* Not likely the best performing mechanism, but for now will do:
-             * - simply create a list of all existing children, then delete
-             * - iterate twice over the patches to remove any that are inserted and also deleted
-             * - children are never reused, so after a delete in a patch element, another add will never follow
-             */
-            HashSet<String> set = new HashSet<>();
-            for (Patch p : getAvailablePatches()) {
-                if (p.type == PatchType.ADD_CHILD) {
-                    set.add(p.childName);
-                }
+        public CompletableFuture<Value> getValueAsync() {
+            Key latest = getValueKey();
+            if (latest == null) {
+                return CompletableFuture.completedFuture(history.value);
+            } else {
+                return store.readAsync(latest);
             }
-            for (Patch p : getAvailablePatches()) {
-                if (p.type == PatchType.DELETE_CHILD) {
-                    set.remove(p.childName);
-                }
+        }
+        public Iterator<String> getChildNames() throws StoreException {
+            return snapshotStamp == null ? getChildIndex().getNames() : getChildIndex().getNames(snapshotStamp);
+        }
+    }
+
+    /**
+     * A read that is executed while holding the read lock of an object, see {@link #read(Read)}.
+     */
+    private interface Read<S, T> {
+        T apply(S object) throws StoreException;
+    }
+
+    /**
+     * Historical view on an object, its methods take the read lock of the object because the view shares state with
+     * the object it was taken from.
+     */
+    private static class LockedView implements ImmutableObject {
+        private final ObjectStoreImpl objectStore;
+        private final ReadWriteLock lock;
+        private final ObjectHistoryStore view;
+        private LockedView(final ObjectStoreImpl objectStore, final ReadWriteLock lock, final ObjectHistoryStore view) {
+            this.objectStore = objectStore;
+            this.lock = lock;
+            this.view = view;
+        }
+        private <T> T read(final Read<ObjectHistoryStore, T> read) throws StoreException {
+            lock.readLock().lock();
+            try {
+                return read.apply(view);
+            } finally {
+                lock.readLock().unlock();
             }
-            return set.iterator();
+        }
+        public Key getKey() {
+            return view.getKey();
+        }
+        public Stamp getCreation() {
+            return view.getCreation();
+        }
+        public Stamp getStamp() throws StoreException {
+            return read(ObjectHistoryStore::getStamp);
+        }
+        public Value getValue() throws StoreException {
+            return read(ObjectHistoryStore::getValue);
+        }
+        public Iterator<String> getChildNames() throws StoreException {
+            return read(ObjectHistoryStore::getChildNames);
+        }
+        public ImmutableObject getChild(final String name) throws StoreException {
+            Key childKey = read(object -> object.getChildKey(name));
+            return childKey == null ? null : ObjectImpl.read(objectStore, childKey);
         }
     }
 
+    private ObjectStoreImpl objectStore;
     private KeyValueStore store;
     private Key key;
-    private ObjectHistoryStore ohs;
+    private volatile ObjectHistoryStore ohs;
 
-    private ObjectImpl(KeyValueStore store, Key key, ObjectHistoryStore ohs) {
-        this.store = store;
+    private ObjectImpl(ObjectStoreImpl objectStore, Key key, ObjectHistoryStore ohs) {
+        this.objectStore = objectStore;
+        this.store = objectStore.getKeyValueStore();
         this.key = key;
         this.ohs = ohs;
     }
 
-    public static ObjectImpl read(KeyValueStore store, Key key) throws StoreException {
+    public static ObjectImpl read(ObjectStoreImpl objectStore, Key key) throws StoreException {
+        ReadWriteLock lock = objectStore.getLock(key);
+        lock.readLock().lock();
+        try {
+            return new ObjectImpl(objectStore, key, objectStore.readHistoryStore(key));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Decodes an object record. The record is not necessarily stored under the key of the object itself, records that
+     * were replaced by a snapshot are stored under a key of their own.
+     */
+    static ObjectHistoryStore readHistoryStore(ObjectStoreImpl objectStore, Key key, Value value) throws StoreException {
         ObjectHistoryStore ohs;
-        Value value = store.read(key);
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(value.getData());
-             ObjectInput objectInput = new ObjectInputStream(bis)) {
-            ObjectHistoryStoreType type = (ObjectHistoryStoreType)objectInput.readObject();
+        ByteBuffer buffer = value.getBuffer();
+        ObjectHistoryStoreType type = decodeObjectType(objectStore, key, buffer);
+        switch (type) {
+            case InitialObject:
+                ohs = InitialObjectStore.read(objectStore, key, buffer);
+                break;
+            case ObjectPlusPatches:
+                ohs = ObjectPlusPatchesStore.read(objectStore, key, buffer, false);
+                break;
+            case Snapshot:
+                ohs = ObjectPlusPatchesStore.read(objectStore, key, buffer, true);
+                break;
+            default:
+                String message = "Error deserializing, unknown type " + type + " in key " + key;
+                log.error(message);
+                throw new StoreException(message);
+        }
+        return ohs;
+    }
+
+    /**
+     * Decodes an object record like {@link #readHistoryStore(ObjectStoreImpl, Key, Value)}, without waiting for the
+     * patch blocks it refers to.
+     */
+    static CompletableFuture<ObjectHistoryStore> readHistoryStoreAsync(ObjectStoreImpl objectStore, Key key, Value value) {
+        ByteBuffer buffer = value.getBuffer();
+        try {
+            ObjectHistoryStoreType type = decodeObjectType(objectStore, key, buffer);
             switch (type) {
                 case InitialObject:
-                    ohs = InitialObjectStore.read(store, key, objectInput);
-                    break;
+                    return CompletableFuture.completedFuture(InitialObjectStore.read(objectStore, key, buffer));
                 case ObjectPlusPatches:
-                    ohs = ObjectPlusPatchesStore.read(store, key, objectInput);
-                    break;
+                    return ObjectPlusPatchesStore.readAsync(objectStore, key, buffer, false);
+                case Snapshot:
+                    return ObjectPlusPatchesStore.readAsync(objectStore, key, buffer, true);
                 default:
-                    String message = "Error deserializing, unknown type " + type + " in key " + new String(key.getData(), StandardCharsets.UTF_8);
+                    String message = "Error deserializing, unknown type " + type + " in key " + key;
                     log.error(message);
                     throw new StoreException(message);
             }
-            return new ObjectImpl(store, key, ohs);
-        } catch (IOException | ClassNotFoundException e) {
-            log.error("Error deserializing " + new String(key.getData(), StandardCharsets.UTF_8), e);
-            throw new StoreException(e);
+        } catch (StoreException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    private static ObjectHistoryStoreType decodeObjectType(ObjectStoreImpl objectStore, Key key, ByteBuffer buffer) throws StoreException {
+        try {
+            return objectStore.getCodec().decodeObjectType(buffer);
+        } catch (StoreException e) {
+            log.error("Error deserializing " + key, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the object without waiting for it, see {@link ObjectStoreImpl#readHistoryStoreAsync(Key)}.
+     */
+    static CompletableFuture<ObjectImpl> readAsync(ObjectStoreImpl objectStore, Key key) {
+        return objectStore.readHistoryStoreAsync(key).thenApply(ohs -> new ObjectImpl(objectStore, key, ohs));
+    }
+
+    /**
+     * Reads from the latest known version of this object while holding its read lock: another instance for the same
+     * key may have changed it since this instance was read, in that case the cache holds the newer version.
+     */
+    private <T> T read(final Read<ObjectHistoryStore, T> read) throws StoreException {
+        ReadWriteLock lock = objectStore.getLock(key);
+        lock.readLock().lock();
+        try {
+            ObjectHistoryStore cached = objectStore.getCachedHistoryStore(key);
+            if (cached != null) {
+                ohs = cached;
+            }
+            return read.apply(ohs);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a patch to the latest version of this object while holding its write lock, and commits it together with
+     * whatever the caller already added to the batch. The stamp is generated while holding the lock so that patches are
+     * always appended in stamp order.
+     */
+    private void addPatch(final WriteBatch batch, final PatchType type, final String name, final Key patchKey) throws StoreException {
+        ReadWriteLock lock = objectStore.getLock(key);
+        lock.writeLock().lock();
+        try {
+            ohs = objectStore.readHistoryStore(key);
+            ohs = ohs.addPatch(new Patch(store.generateStamp(), type, name, patchKey), batch);
+            batch.commit();
+            objectStore.cacheHistoryStore(key, ohs);
+        } catch (StoreException e) {
+            // the cached object may already contain the patch
+            objectStore.evictHistoryStore(key);
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     public void setValue(final Value value) throws StoreException {
-        Key key = store.add(value);
-        ohs = ohs.addPatch(new Patch(store.generateStamp(), PatchType.SET_VALUE, null, key));
+        Compactor.Pin pin = objectStore.getCompactor().pin();
+        try {
+            WriteBatch batch = store.createWriteBatch();
+            List<ValueDeduplicator.Added> added = new ArrayList<>(1);
+            Key key = objectStore.addValue(value, batch, pin, added);
+            addPatch(batch, PatchType.SET_VALUE, null, key);
+            objectStore.registerValues(added);
+        } finally {
+            objectStore.getCompactor().unpin(pin);
+        }
     }
 
     public Object addChild(final String name, final Value value) throws StoreException {
-        ObjectHistoryStore child = InitialObjectStore.create(store, null, value);
-        ohs = ohs.addPatch(new Patch(store.generateStamp(), PatchType.ADD_CHILD, name, child.getKey()));
-        return new ObjectImpl(store, child.getKey(), child);
+        Compactor.Pin pin = objectStore.getCompactor().pin();
+        try {
+            WriteBatch batch = store.createWriteBatch();
+            ObjectHistoryStore child = InitialObjectStore.create(objectStore, null, value, store.generateStamp(), batch);
+            addPatch(batch, PatchType.ADD_CHILD, name, child.getKey());
+            objectStore.cacheHistoryStore(child.getKey(), child);
+            return new ObjectImpl(objectStore, child.getKey(), child);
+        } finally {
+            objectStore.getCompactor().unpin(pin);
+        }
     }
 
     public void deleteChild(final String name) throws StoreException {
-        ohs = ohs.addPatch(new Patch(store.generateStamp(), PatchType.DELETE_CHILD, name, null));
+        addPatch(store.createWriteBatch(), PatchType.DELETE_CHILD, name, null);
     }
 
     public Key getKey() {
@@ -394,23 +835,81 @@ class ObjectImpl implements io.fluffypaws.prefect.api.Object {
     }
 
     public Stamp getStamp() throws StoreException {
-        return ohs.getStamp();
+        return read(ObjectHistoryStore::getStamp);
     }
 
     public ImmutableObject get(final Stamp stamp) throws StoreException {
-        return ohs.get(stamp);
+        ObjectHistoryStore view = read(object -> object.get(stamp));
+        return view == null ? null : new LockedView(objectStore, objectStore.getLock(key), view);
     }
 
     public Value getValue() throws StoreException {
-        return ohs.getValue();
+        return read(ObjectHistoryStore::getValue);
     }
 
     public Iterator<String> getChildNames() throws StoreException {
-        return ohs.getChildNames();
+        return read(ObjectHistoryStore::getChildNames);
     }
 
+    /**
+     * Looks up the key of the child while holding the read lock of this object, but reads the child after releasing
+     * it: taking the lock of the child while holding this one could deadlock with a commit that takes both write locks.
+     */
     public Object getChild(final String name) throws StoreException {
-        return ohs.getChild(name);
+        Key childKey = read(object -> object.getChildKey(name));
+        return childKey == null ? null : read(objectStore, childKey);
+    }
+
+    /**
+     * Copies the state of this object at the stamp, or the current state if the stamp is null, while holding its read
+     * lock. The children are listed with their keys but not read.
+     * @return null if the object did not exist at the stamp
+     */
+    MaterializedObject materialize(final Stamp stamp) throws StoreException {
+        return read(object -> {
+            if (stamp != null && object.getCreation().isAfter(stamp)) {
+                return null;
+            }
+            ObjectHistoryStore state = stamp == null ? object : object.get(stamp);
+            if (state == null) {
+                // an object that was not changed since it was created has no view at later stamps
+                state = object;
+            }
+            LinkedHashMap<String, Key> children = new LinkedHashMap<>();
+            for (Iterator<String> names = state.getChildNames(); names.hasNext(); ) {
+                String name = names.next();
+                children.put(name, state.getChildKey(name));
+            }
+            return new MaterializedObject(objectStore, stamp, key, state.getCreation(), state.getStamp(), state.getValue(), children);
+        });
+    }
+
+    /**
+     * Reads the value without waiting for it: only looking up its key takes the read lock.
+     */
+    CompletableFuture<Value> getValueAsync() {
+        try {
+            return read(ObjectHistoryStore::getValueAsync);
+        } catch (StoreException e) {
+            return Futures.failed(e);
+        }
+    }
+
+    /**
+     * Reads the child with the given name without waiting for it, the future completes with null if there is no such
+     * child.
+     */
+    CompletableFuture<Object> getChildAsync(final String name) {
+        Key childKey;
+        try {
+            childKey = read(object -> object.getChildKey(name));
+        } catch (StoreException e) {
+            return Futures.failed(e);
+        }
+        if (childKey == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return readAsync(objectStore, childKey).thenApply(child -> child);
     }
 
-}
\ No newline at end of file
+}
@@ -16,42 +16,191 @@
 
 package io.fluffypaws.prefect.impl;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.fluffypaws.prefect.api.AsyncObjectStore;
+import io.fluffypaws.prefect.api.BulkLoader;
+import io.fluffypaws.prefect.api.ImmutableObject;
 import io.fluffypaws.prefect.api.Key;
 import io.fluffypaws.prefect.api.KeyValueStore;
 import io.fluffypaws.prefect.api.Object;
 import io.fluffypaws.prefect.api.ObjectStore;
+import io.fluffypaws.prefect.api.ObjectStoreStatistics;
+import io.fluffypaws.prefect.api.Stamp;
 import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Transaction;
 import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
 
+/**
+ * Objects can be used from multiple threads: every object is guarded by a read/write lock, picked from a fixed set of
+ * {@link #STORE_LOCK_STRIPES_KEY} locks by the hash of its key, so changes to different objects mostly proceed in
+ * parallel.
+ *
+ * With {@link #STORE_COMPACTOR_INTERVAL_KEY} set a {@link Compactor} runs in the background, keeping the history of the
+ * last {@link #STORE_COMPACTOR_RETENTION_KEY} milliseconds and pruning everything older.
+ *
+ * With {@link #STORE_DEDUP_SIZE_KEY} set, values with the same contents as one of that many recently stored values are
+ * not stored again, see {@link ValueDeduplicator}.
+ *
+ * Subtrees are prefetched by up to {@link #STORE_PREFETCH_PARALLELISM_KEY} threads, see {@link Prefetcher}.
+ *
+ * Asynchronous reads, see {@link #getAsyncObjectStore()}, do not hold the lock of an object while its records are read.
+ * They check afterwards that the object was not changed meanwhile, and read it again if it was. After
+ * {@link #ASYNC_READ_ATTEMPTS} attempts the object is read while holding its read lock, like a blocking read.
+ */
 public class ObjectStoreImpl implements ObjectStore {
 
     private static Logger log = LoggerFactory.getLogger(ObjectStoreImpl.class);
 
     public static String STORE_LIST_COMPACTING_THRESHOLD_KEY = "store.compacting";
+    public static String STORE_PATCH_BLOCK_SIZE_KEY = "store.patchblock.size";
+    public static String STORE_CACHE_SIZE_KEY = "store.cache.size";
+    public static String STORE_LOCK_STRIPES_KEY = "store.lock.stripes";
+    public static String STORE_COMPACTOR_INTERVAL_KEY = "store.compactor.interval";
+    public static String STORE_COMPACTOR_RETENTION_KEY = "store.compactor.retention";
+    public static String STORE_DEDUP_SIZE_KEY = "store.dedup.size";
+    public static String STORE_PREFETCH_PARALLELISM_KEY = "store.prefetch.parallelism";
+    public static String STORE_BULK_BATCH_SIZE_KEY = "store.bulk.batch.size";
+
+    static final int DEFAULT_COMPACTING_THRESHOLD = 1024;
+    static final int DEFAULT_PATCH_BLOCK_SIZE = 64;
+    static final int DEFAULT_CACHE_SIZE = 10000;
+    static final int DEFAULT_LOCK_STRIPES = 64;
+    static final long DEFAULT_COMPACTOR_INTERVAL = 0;
+    static final long DEFAULT_COMPACTOR_RETENTION = -1;
+    static final int DEFAULT_DEDUP_SIZE = 0;
+    static final int DEFAULT_PREFETCH_PARALLELISM = 16;
+    static final int DEFAULT_BULK_BATCH_SIZE = 4096;
+
+    static final int ASYNC_READ_ATTEMPTS = 3;
+
+    /**
+     * Least recently used cache of decoded objects, keyed by the contents of their key.
+     */
+    private class ObjectCache extends LinkedHashMap<Key, ObjectImpl.ObjectHistoryStore> {
+        ObjectCache() {
+            super(16, 0.75f, true);
+        }
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, ObjectImpl.ObjectHistoryStore> eldest) {
+            if (size() > cacheSize) {
+                stats.cacheEvictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Read/write lock that counts how often its write lock was released, so that a reader that does not hold the lock
+     * can tell whether an object was changed while it was being read.
+     */
+    private static class VersionedLock extends ReentrantReadWriteLock {
+        private final AtomicLong version = new AtomicLong();
+        private final WriteLock writeLock = new WriteLock(this) {
+            @Override
+            public void unlock() {
+                version.incrementAndGet();
+                super.unlock();
+            }
+        };
+        @Override
+        public WriteLock writeLock() {
+            return writeLock;
+        }
+        long getVersion() {
+            return version.get();
+        }
+    }
 
     private KeyValueStore keyValueStore;
+    private AsyncObjectStore asyncObjectStore = new AsyncObjectStoreImpl(this);
+    private RecordCodec codec = new BinaryRecordCodec();
+    private int compactingThreshold = DEFAULT_COMPACTING_THRESHOLD;
+    private int patchBlockSize = DEFAULT_PATCH_BLOCK_SIZE;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+    private ObjectCache cache = new ObjectCache();
+    private ObjectStoreStatistics stats = new ObjectStoreStatistics();
+    private VersionedLock[] locks;
+    private ValueDeduplicator deduplicator;
+    private Compactor compactor;
+    private Prefetcher prefetcher;
 
     public ObjectStoreImpl() {
     }
 
     public boolean initialize(Properties properties, KeyValueStore keyValueStore) {
         this.keyValueStore = keyValueStore;
+        long compactorInterval;
+        long compactorRetention;
+        int prefetchParallelism;
+
+        try {
+            compactingThreshold = Integer.parseInt(properties.getProperty(STORE_LIST_COMPACTING_THRESHOLD_KEY, String.valueOf(DEFAULT_COMPACTING_THRESHOLD)));
+            patchBlockSize = Integer.parseInt(properties.getProperty(STORE_PATCH_BLOCK_SIZE_KEY, String.valueOf(DEFAULT_PATCH_BLOCK_SIZE)));
+            cacheSize = Integer.parseInt(properties.getProperty(STORE_CACHE_SIZE_KEY, String.valueOf(DEFAULT_CACHE_SIZE)));
+            bulkBatchSize = Integer.parseInt(properties.getProperty(STORE_BULK_BATCH_SIZE_KEY, String.valueOf(DEFAULT_BULK_BATCH_SIZE)));
+            locks = new VersionedLock[Integer.parseInt(properties.getProperty(STORE_LOCK_STRIPES_KEY, String.valueOf(DEFAULT_LOCK_STRIPES)))];
+            compactorInterval = Long.parseLong(properties.getProperty(STORE_COMPACTOR_INTERVAL_KEY, String.valueOf(DEFAULT_COMPACTOR_INTERVAL)));
+            compactorRetention = Long.parseLong(properties.getProperty(STORE_COMPACTOR_RETENTION_KEY, String.valueOf(DEFAULT_COMPACTOR_RETENTION)));
+            int dedupSize = Integer.parseInt(properties.getProperty(STORE_DEDUP_SIZE_KEY, String.valueOf(DEFAULT_DEDUP_SIZE)));
+            deduplicator = dedupSize > 0 ? new ValueDeduplicator(dedupSize, stats) : null;
+            compactor = new Compactor(this, RateLimiter.fromProperties(properties));
+            prefetchParallelism = Integer.parseInt(properties.getProperty(STORE_PREFETCH_PARALLELISM_KEY, String.valueOf(DEFAULT_PREFETCH_PARALLELISM)));
+        } catch (NumberFormatException | NegativeArraySizeException e) {
+            log.error("Cannot initialize ObjectStoreImpl, invalid value for property", e);
+            return false;
+        }
+        if (locks.length < 1) {
+            log.error("Cannot initialize ObjectStoreImpl, " + STORE_LOCK_STRIPES_KEY + " must be at least 1");
+            return false;
+        }
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new VersionedLock();
+        }
+        if (patchBlockSize < 1) {
+            log.error("Cannot initialize ObjectStoreImpl, " + STORE_PATCH_BLOCK_SIZE_KEY + " must be at least 1");
+            return false;
+        }
+        if (prefetchParallelism < 1) {
+            log.error("Cannot initialize ObjectStoreImpl, " + STORE_PREFETCH_PARALLELISM_KEY + " must be at least 1");
+            return false;
+        }
+        prefetcher = new Prefetcher(this, prefetchParallelism);
 
         try {
             Value value = keyValueStore.read(keyValueStore.getFirstKey());
             if (value.isEmpty()) {
-                ObjectImpl.InitialObjectStore.create(keyValueStore, keyValueStore.getFirstKey(), null);
+                WriteBatch batch = keyValueStore.createWriteBatch();
+                ObjectImpl.InitialObjectStore.create(this, keyValueStore.getFirstKey(), null, keyValueStore.generateStamp(), batch);
+                batch.commit();
             }
-            return true;
         } catch (StoreException e) {
             log.error("Cannot initialize ObjectStoreImpl, cannot write initial object", e);
             return false;
         }
+
+        if (compactorInterval > 0) {
+            compactor.schedule(compactorInterval, compactorRetention);
+        }
+        return true;
     }
 
     public Object getRoot() throws StoreException {
@@ -59,11 +208,236 @@ public class ObjectStoreImpl implements ObjectStore {
     }
 
     public Object get(final Key key) throws StoreException {
-        return ObjectImpl.read(keyValueStore, key);
+        return ObjectImpl.read(this, key);
+    }
+
+    public ImmutableObject prefetch(final Key key, final Stamp stamp, final int depth) throws StoreException {
+        return prefetcher.prefetch(key, stamp, depth);
+    }
+
+    public Transaction beginTransaction() {
+        return new TransactionImpl(this);
+    }
+
+    public BulkLoader beginBulkLoad(final Key key) {
+        return new BulkLoaderImpl(this, key);
+    }
+
+    public long exportDump(final Key key, final Stamp stamp, final OutputStream out) throws StoreException {
+        return Dump.write(this, key, stamp == null ? keyValueStore.generateStamp() : stamp, out);
+    }
+
+    public long importDump(final Key key, final InputStream in) throws StoreException {
+        return Dump.read(this, key, in);
     }
 
     public KeyValueStore getKeyValueStore() {
         return keyValueStore;
     }
 
+    public AsyncObjectStore getAsyncObjectStore() {
+        return asyncObjectStore;
+    }
+
+    public ObjectStoreStatistics getStatistics() {
+        return stats;
+    }
+
+    public void compact(final Stamp retention) throws StoreException {
+        compactor.compact(retention);
+    }
+
+    public void prune(final Stamp retention) throws StoreException {
+        compactor.prune(retention);
+    }
+
+    /**
+     * Returns the decoded object with the given key, from the cache if possible.
+     */
+    ObjectImpl.ObjectHistoryStore readHistoryStore(final Key key) throws StoreException {
+        ObjectImpl.ObjectHistoryStore ohs = getCachedHistoryStore(key);
+        if (ohs != null) {
+            return ohs;
+        }
+        Value value = keyValueStore.read(key);
+        if (value == null) {
+            String message = "Cannot find object " + key;
+            log.error(message);
+            throw new StoreException(message);
+        }
+        ohs = ObjectImpl.readHistoryStore(this, key, value);
+        cacheHistoryStore(key, ohs);
+        return ohs;
+    }
+
+    /**
+     * Returns the decoded object with the given key like {@link #readHistoryStore(Key)}, without holding its lock while
+     * it is read: if the object was changed meanwhile it is read again. Only the check and caching the result take
+     * the read lock, on a thread of the common pool so that the I/O threads of the key value store never wait for it.
+     */
+    CompletableFuture<ObjectImpl.ObjectHistoryStore> readHistoryStoreAsync(final Key key) {
+        return readHistoryStoreAsync(key, 1);
+    }
+
+    private CompletableFuture<ObjectImpl.ObjectHistoryStore> readHistoryStoreAsync(final Key key, final int attempt) {
+        ObjectImpl.ObjectHistoryStore cached = getCachedHistoryStore(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        VersionedLock lock = locks[getStripe(key)];
+        long version = lock.getVersion();
+        return keyValueStore.readAsync(key).thenCompose(value -> {
+            if (value == null) {
+                return Futures.<ObjectImpl.ObjectHistoryStore>failed(new StoreException("Cannot find object " + key));
+            }
+            return ObjectImpl.readHistoryStoreAsync(this, key, value);
+        }).handleAsync((ohs, e) -> {
+            lock.readLock().lock();
+            try {
+                if (lock.getVersion() != version) {
+                    if (attempt < ASYNC_READ_ATTEMPTS) {
+                        // a half written object may not even decode, so errors are retried as well
+                        return null;
+                    }
+                    // the object keeps changing, read it while holding the read lock
+                    try {
+                        return CompletableFuture.completedFuture(readHistoryStore(key));
+                    } catch (StoreException readError) {
+                        return Futures.<ObjectImpl.ObjectHistoryStore>failed(readError);
+                    }
+                }
+                if (e != null) {
+                    log.error("Error reading object " + key, Futures.unwrap(e));
+                    return Futures.<ObjectImpl.ObjectHistoryStore>failed(Futures.unwrap(e));
+                }
+                cacheHistoryStore(key, ohs);
+                return CompletableFuture.completedFuture(ohs);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }).thenCompose(result -> result == null ? readHistoryStoreAsync(key, attempt + 1) : result);
+    }
+
+    /**
+     * Returns the cached decoded object with the given key, or null if it is not cached.
+     */
+    ObjectImpl.ObjectHistoryStore getCachedHistoryStore(final Key key) {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        synchronized (cache) {
+            ObjectImpl.ObjectHistoryStore ohs = cache.get(key);
+            if (ohs == null) {
+                stats.cacheMisses++;
+            } else {
+                stats.cacheHits++;
+            }
+            return ohs;
+        }
+    }
+
+    boolean isCaching() {
+        return cacheSize > 0;
+    }
+
+    /**
+     * Caches the decoded object, replacing any earlier version. Called after every change made to an object.
+     */
+    void cacheHistoryStore(final Key key, final ObjectImpl.ObjectHistoryStore ohs) {
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                cache.put(key, ohs);
+            }
+        }
+    }
+
+    /**
+     * Removes the decoded object from the cache, used when a change could not be written.
+     */
+    void evictHistoryStore(final Key key) {
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private int getStripe(final Key key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % locks.length;
+    }
+
+    /**
+     * Returns the lock that guards the object with the given key.
+     */
+    ReadWriteLock getLock(final Key key) {
+        return locks[getStripe(key)];
+    }
+
+    /**
+     * Returns the locks that guard the objects with the given keys, every lock once and always in the same order so
+     * that threads taking several of them cannot deadlock.
+     */
+    List<ReadWriteLock> getLocks(final Collection<Key> keys) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Key key : keys) {
+            stripes.add(getStripe(key));
+        }
+        List<ReadWriteLock> result = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            result.add(locks[stripe]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the table of recently stored values, or null if values are not deduplicated.
+     */
+    ValueDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Adds the value to the batch unless a value with the same contents is already stored, see
+     * {@link ValueDeduplicator#add(Value, WriteBatch, Compactor.Pin, List)}.
+     * @return the key the change refers to
+     */
+    Key addValue(final Value value, final WriteBatch batch, final Compactor.Pin pin, final List<ValueDeduplicator.Added> added) throws StoreException {
+        return deduplicator == null ? batch.add(value) : deduplicator.add(value, batch, pin, added);
+    }
+
+    /**
+     * Makes the values added by a committed change available for deduplication.
+     */
+    void registerValues(final List<ValueDeduplicator.Added> added) throws StoreException {
+        if (deduplicator != null) {
+            deduplicator.register(added);
+        }
+    }
+
+    Compactor getCompactor() {
+        return compactor;
+    }
+
+    RecordCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the number of patches after which an object folds its patch list into a snapshot, 0 disables compacting.
+     */
+    int getCompactingThreshold() {
+        return compactingThreshold;
+    }
+
+    int getPatchBlockSize() {
+        return patchBlockSize;
+    }
+
+    /**
+     * Returns the number of new objects a {@link BulkLoaderImpl} writes per batch.
+     */
+    int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
 }
\ No newline at end of file
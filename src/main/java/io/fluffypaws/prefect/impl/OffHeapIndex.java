@@ -0,0 +1,303 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open addressing hash table from key to {@link SegmentedKeyValueStore.Location} kept in direct byte buffers, so the
+ * index of a store with many keys does not occupy the heap. Every slot holds key + 1 (8 bytes, 0 for an empty slot),
+ * segment (4 bytes), length (4 bytes) and offset (8 bytes). Collisions are resolved by linear probing, removals shift
+ * the following entries back so there are no tombstones. The table doubles when it is three quarters full; it is
+ * split into chunks because a single buffer cannot exceed 2GB.
+ *
+ * Updates take the write lock, lookups are optimistic and only take the read lock if an update interfered.
+ */
+final class OffHeapIndex {
+
+    static final int ENTRY_SIZE = 24;
+
+    private static final int KEY = 0;
+    private static final int SEGMENT = 8;
+    private static final int LENGTH = 12;
+    private static final int OFFSET = 16;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CHUNK_SLOTS = 1 << 24;
+
+    interface Visitor {
+        void visit(long key, int segment, long offset, int length) throws IOException;
+    }
+
+    private static final class Table {
+        final long capacity;
+        final long mask;
+        final int chunkShift;
+        final int chunkMask;
+        final ByteBuffer[] chunks;
+
+        Table(final long capacity) {
+            int chunkSlots = (int)Math.min(capacity, MAX_CHUNK_SLOTS);
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.chunkShift = Integer.numberOfTrailingZeros(chunkSlots);
+            this.chunkMask = chunkSlots - 1;
+            this.chunks = new ByteBuffer[(int)(capacity / chunkSlots)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ByteBuffer.allocateDirect(chunkSlots * ENTRY_SIZE);
+            }
+        }
+
+        ByteBuffer chunk(final long slot) {
+            return chunks[(int)(slot >>> chunkShift)];
+        }
+
+        int position(final long slot) {
+            return ((int)slot & chunkMask) * ENTRY_SIZE;
+        }
+
+        /**
+         * @return the key stored in the slot plus one, 0 if the slot is empty
+         */
+        long storedKey(final long slot) {
+            return chunk(slot).getLong(position(slot) + KEY);
+        }
+
+        long home(final long key) {
+            return mix(key) & mask;
+        }
+
+        /**
+         * @return the slot of the key, or the empty slot where it would be inserted, or -1 if the table is full
+         */
+        long find(final long key) {
+            long slot = home(key);
+            for (long i = 0; i < capacity; i++) {
+                long stored = storedKey(slot);
+                if (stored == 0 || stored == key + 1) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void set(final long slot, final long key, final int segment, final long offset, final int length) {
+            ByteBuffer chunk = chunk(slot);
+            int position = position(slot);
+            chunk.putInt(position + SEGMENT, segment);
+            chunk.putInt(position + LENGTH, length);
+            chunk.putLong(position + OFFSET, offset);
+            chunk.putLong(position + KEY, key + 1);
+        }
+
+        void move(final long from, final long to) {
+            ByteBuffer source = chunk(from);
+            int position = position(from);
+            set(to, source.getLong(position + KEY) - 1, source.getInt(position + SEGMENT), source.getLong(position + OFFSET), source.getInt(position + LENGTH));
+        }
+
+        void clear(final long slot) {
+            chunk(slot).putLong(position(slot) + KEY, 0);
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private volatile long size = 0;
+
+    /**
+     * @param expected number of keys the table is sized for initially
+     */
+    OffHeapIndex(final long expected) {
+        table = new Table(capacityFor(expected));
+    }
+
+    private static long capacityFor(final long entries) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * 3 < entries * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads sequentially allocated keys over the table (the finalizer of MurmurHash3).
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    long size() {
+        return size;
+    }
+
+    SegmentedKeyValueStore.Location get(final long key) {
+        long stamp = lock.tryOptimisticRead();
+        SegmentedKeyValueStore.Location location = lookup(table, key);
+        if (lock.validate(stamp)) {
+            return location;
+        }
+        stamp = lock.readLock();
+        try {
+            return lookup(table, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static SegmentedKeyValueStore.Location lookup(final Table table, final long key) {
+        long slot = table.find(key);
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer chunk = table.chunk(slot);
+        int position = table.position(slot);
+        if (chunk.getLong(position + KEY) != key + 1) {
+            return null;
+        }
+        return new SegmentedKeyValueStore.Location(chunk.getInt(position + SEGMENT), chunk.getLong(position + OFFSET), chunk.getInt(position + LENGTH));
+    }
+
+    boolean contains(final long key) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = contains(table, key);
+        if (lock.validate(stamp)) {
+            return found;
+        }
+        stamp = lock.readLock();
+        try {
+            return contains(table, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static boolean contains(final Table table, final long key) {
+        long slot = table.find(key);
+        return slot >= 0 && table.storedKey(slot) == key + 1;
+    }
+
+    void put(final long key, final SegmentedKeyValueStore.Location location) {
+        put(key, location.segment, location.offset, location.length);
+    }
+
+    void put(final long key, final int segment, final long offset, final int length) {
+        long stamp = lock.writeLock();
+        try {
+            long slot = table.find(key);
+            if (slot < 0 || table.storedKey(slot) == 0) {
+                if ((size + 1) * 4 > table.capacity * 3) {
+                    resize(table.capacity << 1);
+                    slot = table.find(key);
+                }
+                size++;
+            }
+            table.set(slot, key, segment, offset, length);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Grows the table up front so that it holds the number of entries without resizing.
+     */
+    void ensureCapacity(final long entries) {
+        long stamp = lock.writeLock();
+        try {
+            long capacity = capacityFor(entries);
+            if (capacity > table.capacity) {
+                resize(capacity);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void resize(final long capacity) {
+        Table old = table;
+        Table resized = new Table(capacity);
+        for (long slot = 0; slot < old.capacity; slot++) {
+            long stored = old.storedKey(slot);
+            if (stored != 0) {
+                long target = resized.find(stored - 1);
+                ByteBuffer chunk = old.chunk(slot);
+                int position = old.position(slot);
+                resized.set(target, stored - 1, chunk.getInt(position + SEGMENT), chunk.getLong(position + OFFSET), chunk.getInt(position + LENGTH));
+            }
+        }
+        table = resized;
+    }
+
+    /**
+     * @return true if the key was in the index
+     */
+    boolean remove(final long key) {
+        long stamp = lock.writeLock();
+        try {
+            Table table = this.table;
+            long slot = table.find(key);
+            if (slot < 0 || table.storedKey(slot) != key + 1) {
+                return false;
+            }
+            // shift back every following entry that would no longer be found once the slot is empty
+            long empty = slot;
+            long next = slot;
+            while (true) {
+                next = (next + 1) & table.mask;
+                long stored = table.storedKey(next);
+                if (stored == 0) {
+                    break;
+                }
+                long home = table.home(stored - 1);
+                if (((next - home) & table.mask) >= ((next - empty) & table.mask)) {
+                    table.move(next, empty);
+                    empty = next;
+                }
+            }
+            table.clear(empty);
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void forEach(final Visitor visitor) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            Table table = this.table;
+            for (long slot = 0; slot < table.capacity; slot++) {
+                long stored = table.storedKey(slot);
+                if (stored != 0) {
+                    ByteBuffer chunk = table.chunk(slot);
+                    int position = table.position(slot);
+                    visitor.visit(stored - 1, chunk.getInt(position + SEGMENT), chunk.getLong(position + OFFSET), chunk.getInt(position + LENGTH));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+
+/**
+ * Reads a subtree into {@link MaterializedObject}s. Every object is read by a task of its own and the children of an
+ * object are forked as soon as it has been read, so siblings and cousins are read concurrently. The pool has
+ * {@link ObjectStoreImpl#STORE_PREFETCH_PARALLELISM_KEY} threads, which is the highest number of reads in flight.
+ *
+ * Every object is read under its own read lock, so each one is consistent on its own. Reading at a stamp gives a
+ * consistent view of the whole subtree.
+ */
+final class Prefetcher {
+
+    private final ObjectStoreImpl objectStore;
+    private final ForkJoinPool pool;
+
+    private class Read extends RecursiveTask<MaterializedObject> {
+        private final Key key;
+        private final Stamp stamp;
+        private final int depth;
+        Read(final Key key, final Stamp stamp, final int depth) {
+            this.key = key;
+            this.stamp = stamp;
+            this.depth = depth;
+        }
+        @Override
+        protected MaterializedObject compute() {
+            MaterializedObject object;
+            try {
+                object = ObjectImpl.read(objectStore, key).materialize(stamp);
+            } catch (StoreException e) {
+                throw new CompletionException(e);
+            }
+            if (object == null || depth == 0) {
+                return object;
+            }
+            List<String> names = new ArrayList<>(object.getChildKeys().size());
+            List<Read> reads = new ArrayList<>(object.getChildKeys().size());
+            for (Map.Entry<String, Key> child : object.getChildKeys().entrySet()) {
+                Read read = new Read(child.getValue(), stamp, depth - 1);
+                read.fork();
+                names.add(child.getKey());
+                reads.add(read);
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                MaterializedObject child = reads.get(i).join();
+                if (child != null) {
+                    object.setChild(names.get(i), child);
+                }
+            }
+            return object;
+        }
+    }
+
+    Prefetcher(final ObjectStoreImpl objectStore, final int parallelism) {
+        this.objectStore = objectStore;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @see io.fluffypaws.prefect.api.ObjectStore#prefetch(Key, Stamp, int)
+     */
+    MaterializedObject prefetch(final Key key, final Stamp stamp, final int depth) throws StoreException {
+        try {
+            return pool.invoke(new Read(key, stamp, depth));
+        } catch (RuntimeException e) {
+            Throwable cause = Futures.unwrap(e);
+            if (cause instanceof StoreException) {
+                throw (StoreException)cause;
+            }
+            throw e;
+        }
+    }
+
+}
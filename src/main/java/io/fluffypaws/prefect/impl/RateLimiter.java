@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import io.fluffypaws.prefect.api.StoreFactory;
+
+/**
+ * Limits background I/O to a number of bytes per second by sleeping after the bytes have been used, so that callers
+ * never sleep while holding a lock if they acquire after releasing it. A rate of 0 or less does not limit.
+ */
+final class RateLimiter {
+
+    private final long bytesPerSecond;
+    private long next = System.nanoTime();
+
+    RateLimiter(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Creates a limiter for the rate in {@link StoreFactory#STORE_COMPACTOR_RATE_KEY}.
+     * @throws NumberFormatException if the property is not a number
+     */
+    static RateLimiter fromProperties(final Properties properties) {
+        return new RateLimiter(Long.parseLong(properties.getProperty(StoreFactory.STORE_COMPACTOR_RATE_KEY, "0")));
+    }
+
+    void acquire(final long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            next = Math.max(next, now) + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            delay = next - now;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
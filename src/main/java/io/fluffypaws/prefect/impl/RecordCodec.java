@@ -0,0 +1,50 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+
+/**
+ * Encodes and decodes the records that {@link ObjectImpl} keeps in the {@link io.fluffypaws.prefect.api.KeyValueStore}.
+ * Every record starts with the version of the codec that wrote it, so a codec can refuse (or in a later version
+ * translate) records in a format it does not know. Decoding reads from the given buffer and advances its position.
+ */
+interface RecordCodec {
+
+    byte getVersion();
+
+    /**
+     * Encodes an object record, the snapshot is only written for {@link ObjectImpl.ObjectHistoryStoreType#Snapshot}.
+     */
+    Value encodeObject(ObjectImpl.ObjectHistoryStoreType type, ObjectImpl.History history, ObjectImpl.Snapshot snapshot);
+
+    ObjectImpl.ObjectHistoryStoreType decodeObjectType(ByteBuffer buffer) throws StoreException;
+
+    ObjectImpl.History decodeHistory(ByteBuffer buffer) throws StoreException;
+
+    ObjectImpl.Snapshot decodeSnapshot(ByteBuffer buffer) throws StoreException;
+
+    Value encodePatchBlock(Key previous, List<ObjectImpl.Patch> patches);
+
+    ObjectImpl.PatchBlock decodePatchBlock(ByteBuffer buffer) throws StoreException;
+
+}
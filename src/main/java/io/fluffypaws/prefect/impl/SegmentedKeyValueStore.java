@@ -0,0 +1,783 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * Log structured store: values are appended to rolling segment files and an in-memory index keeps track of the
+ * location of the latest version of every key. Writing an existing key or deleting it appends a new record (a
+ * tombstone in case of a delete), the old record stays in its segment until it is reclaimed.
+ *
+ * Records are written in the format of {@link LogRecords}, every commit as one group that does not span segments. A
+ * store that is opened in a directory that already contains segments replays them to rebuild the index, a torn group
+ * at the end of the last segment is discarded.
+ *
+ * The index is an {@link OffHeapIndex} in direct memory, so the heap does not grow with the number of keys. It is
+ * sized for {@link #STORE_INDEX_CAPACITY_KEY} keys initially and doubles when it fills up.
+ *
+ * To avoid replaying everything on startup the index is checkpointed to a file at shutdown and after every
+ * {@link #STORE_INDEX_CHECKPOINT_SIZE_KEY} bytes appended: highest key, the position in the log it covers and all
+ * locations, followed by a CRC32. On startup the checkpoint is mapped and validated, and only the records after the
+ * position it covers are replayed.
+ *
+ * With {@link #STORE_READ_MMAP_KEY} enabled every segment is memory mapped when it is created (which preallocates it to
+ * the full segment size) and reads return a slice of the mapping instead of copying the record onto the heap.
+ *
+ * Compacting scans every segment and deletes the keys that are no longer live. A segment before the active one in which
+ * less than {@link #STORE_SEGMENT_COMPACTION_RATIO_KEY} of the bytes is still live is rewritten by appending its live
+ * records again. Tombstones are kept as long as an older segment exists. Once the index is checkpointed the rewritten
+ * segments are deleted, a reader that still has the old location looks the key up again.
+ *
+ * Appends are serialized, reads do not take a lock: a key only becomes visible in the index once its record has been
+ * written completely. Concurrently committed batches are appended as one group, with {@link StoreFactory#STORE_SYNC_KEY}
+ * enabled the group is synced with a single force of the segment before its keys become visible.
+ *
+ * Asynchronous reads and writes run on a pool of I/O threads, except reads of memory mapped segments which do not
+ * block.
+ */
+public class SegmentedKeyValueStore implements KeyValueStore, BufferedWriteBatch.Target {
+
+    private static Logger log = LoggerFactory.getLogger(SegmentedKeyValueStore.class);
+
+    public static final String STORE_SEGMENT_SIZE_KEY = "store.segment.size";
+    public static final String STORE_READ_MMAP_KEY = "store.read.mmap";
+    public static final String STORE_INDEX_CHECKPOINT_SIZE_KEY = "store.index.checkpoint.size";
+    public static final String STORE_INDEX_CAPACITY_KEY = "store.index.capacity";
+    public static final String STORE_SEGMENT_COMPACTION_RATIO_KEY = "store.segment.compaction.ratio";
+
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    static final long DEFAULT_INDEX_CHECKPOINT_SIZE = 256L * 1024L * 1024L;
+    static final long DEFAULT_INDEX_CAPACITY = 64L * 1024L;
+    static final double DEFAULT_SEGMENT_COMPACTION_RATIO = 0.5;
+    static final String SEGMENT_FILE_PREFIX = "segment-";
+    static final String INDEX_FILE_NAME = "index";
+    static final int INDEX_HEADER_SIZE = 28;
+    static final int INDEX_ENTRY_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = LogRecords.HEADER_SIZE;
+
+    static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private long firstKey = 0;
+    private AtomicLong highestKey = new AtomicLong(firstKey);
+    private String storeDirectoryName;
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private boolean mmap = false;
+    private boolean sync = false;
+    private GroupCommit groupCommit = new GroupCommit(this::flush);
+    private List<FileChannel> segments = new CopyOnWriteArrayList<>();
+    private List<MappedByteBuffer> mappedSegments = new CopyOnWriteArrayList<>();
+    private long activePosition = 0;
+    private long indexCheckpointSize = DEFAULT_INDEX_CHECKPOINT_SIZE;
+    private long appendedSinceCheckpoint = 0;
+    private long indexCapacity = DEFAULT_INDEX_CAPACITY;
+    private OffHeapIndex index;
+    private double compactionRatio = DEFAULT_SEGMENT_COMPACTION_RATIO;
+    private RateLimiter compactionLimiter;
+    private ExecutorService executor;
+    // only one compaction at a time, appends and deletes are guarded by the lock of the store itself
+    private final java.lang.Object compactionLock = new java.lang.Object();
+    private KeyValueStoreStatistics stats = new KeyValueStoreStatistics();
+
+    public SegmentedKeyValueStore() {
+    }
+
+    public boolean initialize(final Properties properties) {
+        if (!properties.containsKey(StoreFactory.STORE_DIRECTORY_KEY)) {
+            log.error("Cannot initialize SegmentedKeyValueStore, cannot find property: " + StoreFactory.STORE_DIRECTORY_KEY);
+            return false;
+        }
+
+        storeDirectoryName = properties.getProperty(StoreFactory.STORE_DIRECTORY_KEY);
+
+        if (!Files.isDirectory(Paths.get(storeDirectoryName))) {
+            log.error("Cannot initialize SegmentedKeyValueStore, cannot find directory: " + storeDirectoryName);
+            return false;
+        }
+
+        try {
+            segmentSize = Long.parseLong(properties.getProperty(STORE_SEGMENT_SIZE_KEY, String.valueOf(DEFAULT_SEGMENT_SIZE)));
+            indexCheckpointSize = Long.parseLong(properties.getProperty(STORE_INDEX_CHECKPOINT_SIZE_KEY, String.valueOf(DEFAULT_INDEX_CHECKPOINT_SIZE)));
+            indexCapacity = Long.parseLong(properties.getProperty(STORE_INDEX_CAPACITY_KEY, String.valueOf(DEFAULT_INDEX_CAPACITY)));
+            compactionRatio = Double.parseDouble(properties.getProperty(STORE_SEGMENT_COMPACTION_RATIO_KEY, String.valueOf(DEFAULT_SEGMENT_COMPACTION_RATIO)));
+            compactionLimiter = RateLimiter.fromProperties(properties);
+            executor = Futures.newExecutor("prefect-segmented-io", properties);
+        } catch (NumberFormatException e) {
+            log.error("Cannot initialize SegmentedKeyValueStore, invalid value for property: " + STORE_SEGMENT_SIZE_KEY + ", " + STORE_INDEX_CHECKPOINT_SIZE_KEY + ", " + STORE_INDEX_CAPACITY_KEY + ", " + STORE_SEGMENT_COMPACTION_RATIO_KEY + ", " + StoreFactory.STORE_COMPACTOR_RATE_KEY + " or " + StoreFactory.STORE_ASYNC_THREADS_KEY, e);
+            return false;
+        }
+        index = new OffHeapIndex(indexCapacity);
+        mmap = Boolean.parseBoolean(properties.getProperty(STORE_READ_MMAP_KEY, "false"));
+        sync = Boolean.parseBoolean(properties.getProperty(StoreFactory.STORE_SYNC_KEY, "false"));
+        if (mmap && segmentSize > Integer.MAX_VALUE) {
+            log.error("Cannot initialize SegmentedKeyValueStore, " + STORE_SEGMENT_SIZE_KEY + " is too large to memory map segments");
+            return false;
+        }
+
+        log.info("SegmentedKeyValueStore starting in " + storeDirectoryName);
+
+        List<Integer> existing = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(storeDirectoryName), SEGMENT_FILE_PREFIX + "*")) {
+            for (Path file : files) {
+                try {
+                    existing.add(Integer.parseInt(file.getFileName().toString().substring(SEGMENT_FILE_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cannot initialize SegmentedKeyValueStore, error listing directory " + storeDirectoryName, e);
+            return false;
+        }
+        Collections.sort(existing);
+
+        if (!existing.isEmpty()) {
+            try {
+                recover(existing);
+            } catch (IOException | StoreException e) {
+                log.error("Cannot initialize SegmentedKeyValueStore, cannot recover segments in " + storeDirectoryName, e);
+                return false;
+            }
+            return true;
+        }
+
+        try {
+            rollSegment();
+            write(getFirstKey(), new Value(), false);
+        } catch (StoreException e) {
+            log.error("Cannot initialize SegmentedKeyValueStore, cannot write initial object", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Rebuilds the index from the index checkpoint, if there is a valid one, and by replaying the existing segments in
+     * order from the position the checkpoint covers. Appends continue after the last complete group. Segments that
+     * were reclaimed by compacting leave a gap in the numbering.
+     * @param existing the numbers of the existing segments, in order
+     */
+    private void recover(final List<Integer> existing) throws IOException, StoreException {
+        long[] covered = readIndexCheckpoint(existing);
+        int fromSegment = covered == null ? 0 : (int)covered[0];
+        long fromPosition = covered == null ? 0 : covered[1];
+        int count = existing.get(existing.size() - 1) + 1;
+        for (int segment = 0; segment < count; segment++) {
+            String fileName = segmentFileName(segment);
+            if (Collections.binarySearch(existing, segment) < 0) {
+                segments.add(null);
+                if (mmap) {
+                    mappedSegments.add(null);
+                }
+                continue;
+            }
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(channel);
+            if (mmap) {
+                mappedSegments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, segmentSize));
+            }
+            if (segment < fromSegment) {
+                continue;
+            }
+            final int current = segment;
+            activePosition = LogRecords.scan(channel, segment == fromSegment ? fromPosition : 0, (key, offset, data) -> {
+                if (data == null) {
+                    index.remove(key);
+                } else {
+                    index.put(key, current, offset, data.remaining());
+                }
+                if (key > highestKey.get()) {
+                    highestKey.set(key);
+                }
+            });
+        }
+        if (!mmap) {
+            // drop a torn group, a mapped segment keeps its preallocated size
+            segments.get(count - 1).truncate(activePosition);
+        }
+        log.info("SegmentedKeyValueStore recovered " + index.size() + " keys from " + existing.size() + " segments, replayed from segment " + fromSegment + " position " + fromPosition);
+    }
+
+    /**
+     * Loads the index checkpoint, if there is one that is intact and matches the segments.
+     * @return the segment and position up to which the checkpoint covers the log, or null if there is no usable checkpoint
+     */
+    private long[] readIndexCheckpoint(final List<Integer> existing) throws IOException {
+        Path file = Paths.get(storeDirectoryName, INDEX_FILE_NAME);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < INDEX_HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                log.warn("Ignoring index checkpoint of unexpected size " + size);
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            ByteBuffer contents = buffer.duplicate();
+            ((Buffer)contents).limit((int)size - 4);
+            crc.update(contents);
+            long highest = buffer.getLong(0);
+            int segment = buffer.getInt(8);
+            long position = buffer.getLong(12);
+            long entries = buffer.getLong(20);
+            if (buffer.getInt((int)size - 4) != (int)crc.getValue() || INDEX_HEADER_SIZE + entries * INDEX_ENTRY_SIZE + 4 != size) {
+                log.warn("Ignoring corrupt index checkpoint " + file);
+                return null;
+            }
+            if (Collections.binarySearch(existing, segment) < 0 || position > Files.size(Paths.get(segmentFileName(segment)))) {
+                log.warn("Ignoring index checkpoint " + file + " that does not match the segments");
+                return null;
+            }
+
+            index.ensureCapacity(entries);
+            ((Buffer)buffer).position(INDEX_HEADER_SIZE);
+            for (long i = 0; i < entries; i++) {
+                long key = buffer.getLong();
+                index.put(key, buffer.getInt(), buffer.getLong(), buffer.getInt());
+            }
+            highestKey.set(highest);
+            return new long[] { segment, position };
+        }
+    }
+
+    /**
+     * Syncs the segments and writes the index as it is now, must be called while holding the lock of the store.
+     */
+    private void writeIndexCheckpoint() throws StoreException {
+        Path file = Paths.get(storeDirectoryName, INDEX_FILE_NAME);
+        Path temporary = Paths.get(storeDirectoryName, INDEX_FILE_NAME + ".tmp");
+        try {
+            for (FileChannel channel : segments) {
+                if (channel != null) {
+                    channel.force(false);
+                }
+            }
+
+            long entries = index.size();
+            long size = INDEX_HEADER_SIZE + entries * INDEX_ENTRY_SIZE + 4;
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+                buffer.putLong(highestKey.get());
+                buffer.putInt(segments.size() - 1);
+                buffer.putLong(activePosition);
+                buffer.putLong(entries);
+                index.forEach((key, segment, offset, length) -> {
+                    if (buffer.remaining() < INDEX_ENTRY_SIZE + 4) {
+                        writeChecksummed(channel, buffer, crc);
+                    }
+                    buffer.putLong(key);
+                    buffer.putInt(segment);
+                    buffer.putLong(offset);
+                    buffer.putInt(length);
+                });
+                writeChecksummed(channel, buffer, crc);
+                ByteBuffer checksum = ByteBuffer.allocate(4);
+                checksum.putInt(0, (int)crc.getValue());
+                LogRecords.writeFully(channel, checksum, channel.position());
+                if (channel.position() + 4 != size) {
+                    throw new IOException("Index changed while writing checkpoint");
+                }
+                channel.force(false);
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel directory = FileChannel.open(Paths.get(storeDirectoryName), StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+            appendedSinceCheckpoint = 0;
+        } catch (IOException e) {
+            log.error("Error writing index checkpoint in " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+    }
+
+    private static void writeChecksummed(final FileChannel channel, final ByteBuffer buffer, final CRC32 crc) throws IOException {
+        ((Buffer)buffer).flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer)buffer).clear();
+    }
+
+    private Key longToKey(long l) {
+        return new Key(l);
+    }
+
+    private long keyToLong(Key key) {
+        return key.toLong();
+    }
+
+    private String segmentFileName(int segment) {
+        return storeDirectoryName + "/" + SEGMENT_FILE_PREFIX + String.format("%08d", segment);
+    }
+
+    private void rollSegment() throws StoreException {
+        String fileName = segmentFileName(segments.size());
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(channel);
+            if (mmap) {
+                mappedSegments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, segmentSize));
+            }
+            activePosition = 0;
+        } catch (IOException e) {
+            log.error("Error creating segment " + fileName, e);
+            throw new StoreException(e);
+        }
+    }
+
+    public Key getFirstKey() {
+        return longToKey(firstKey);
+    }
+
+    public Key getHighestKey() {
+        return longToKey(highestKey.get());
+    }
+
+    public Key allocateKey() {
+        return longToKey(highestKey.incrementAndGet());
+    }
+
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    public Key add(final Value value) throws StoreException {
+        WriteBatch batch = createWriteBatch();
+        Key key = batch.add(value);
+        batch.commit();
+        return key;
+    }
+
+    public CompletableFuture<Key> addAsync(final Value value) {
+        return Futures.supply(() -> add(value), executor);
+    }
+
+    public CompletableFuture<Value> readAsync(final Key key) {
+        return mmap ? Futures.completed(() -> read(key)) : Futures.supply(() -> read(key), executor);
+    }
+
+    public CompletableFuture<Void> writeAsync(final Key key, final Value value) {
+        return Futures.supply(() -> {
+            write(key, value);
+            return null;
+        }, executor);
+    }
+
+    public Value read(final Key key) throws StoreException {
+        while (true) {
+            Location location = index.get(keyToLong(key));
+            if (location == null) {
+                return null;
+            }
+            Value value = read(key, location);
+            if (value != null) {
+                return value;
+            }
+            // the segment was reclaimed, the record has been moved
+        }
+    }
+
+    /**
+     * Reads the record at the location, returns null if its segment has been reclaimed by compacting.
+     */
+    private Value read(final Key key, final Location location) throws StoreException {
+        long start = location.offset + RECORD_HEADER_SIZE;
+        if (mmap && start + location.length <= segmentSize) {
+            MappedByteBuffer mapped = mappedSegments.get(location.segment);
+            if (mapped == null) {
+                return null;
+            }
+            ByteBuffer slice = mapped.duplicate();
+            ((Buffer)slice).position((int)start);
+            ((Buffer)slice).limit((int)start + location.length);
+            return new Value(slice.slice());
+        }
+
+        FileChannel channel = segments.get(location.segment);
+        if (channel == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        try {
+            long position = start;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    String message = "Unexpected end of segment " + location.segment + " reading " + key;
+                    log.error(message);
+                    throw new StoreException(message);
+                }
+                position += read;
+            }
+            return new Value(buffer.array());
+        } catch (ClosedChannelException e) {
+            if (segments.get(location.segment) == null) {
+                return null;
+            }
+            log.error("Error reading segment " + location.segment, e);
+            throw new StoreException(e);
+        } catch (IOException e) {
+            log.error("Error reading segment " + location.segment, e);
+            throw new StoreException(e);
+        }
+    }
+
+    private Location append(final long key, final byte[] data) throws StoreException {
+        return append(new long[] { key }, new byte[][] { data })[0];
+    }
+
+    /**
+     * Appends the records as one group, which is written to a single segment so that replaying a segment either sees
+     * all of them or none.
+     */
+    private Location[] append(final long[] keys, final byte[][] data) throws StoreException {
+        long groupSize = LogRecords.HEADER_SIZE;
+        for (byte[] d : data) {
+            groupSize += LogRecords.size(d);
+        }
+        if (activePosition > 0 && activePosition + groupSize > segmentSize) {
+            rollSegment();
+        }
+        if (groupSize > Integer.MAX_VALUE) {
+            String message = "Cannot append a group of " + groupSize + " bytes";
+            log.error(message);
+            throw new StoreException(message);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)groupSize);
+        LogRecords.encodeGroup(buffer, keys.length);
+        int segment = segments.size() - 1;
+        Location[] locations = new Location[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            locations[i] = new Location(segment, activePosition + buffer.position(), data[i] == null ? LogRecords.TOMBSTONE : data[i].length);
+            LogRecords.encode(buffer, keys[i], data[i]);
+        }
+        ((Buffer)buffer).flip();
+
+        try {
+            LogRecords.writeFully(segments.get(segment), buffer, activePosition);
+            activePosition += groupSize;
+        } catch (IOException e) {
+            log.error("Error appending to segment " + segment, e);
+            throw new StoreException(e);
+        }
+        return locations;
+    }
+
+    private void write(final Key key, final Value value, boolean expected) throws StoreException {
+        long l = keyToLong(key);
+
+        boolean exists = index.contains(l);
+        if (expected && !exists) {
+            log.error("SEVERE - write called for a key that does not exist yet");
+        }
+        if (!expected && exists) {
+            log.error("SEVERE - unexpected value found while writing");
+        }
+
+        index.put(l, append(l, value.getData()));
+        stats.totalWrites++;
+        stats.totalBytesWritten += value.getLength();
+    }
+
+    public void write(final Key key, final Value value) throws StoreException {
+        WriteBatch batch = createWriteBatch();
+        batch.write(key, value);
+        batch.commit();
+    }
+
+    public WriteBatch createWriteBatch() {
+        return new BufferedWriteBatch(this);
+    }
+
+    private synchronized void flush(final List<BufferedWriteBatch> batches) throws StoreException {
+        int count = 0;
+        for (BufferedWriteBatch batch : batches) {
+            count += batch.getWrites().size();
+        }
+        long[] keys = new long[count];
+        byte[][] data = new byte[count][];
+        Set<Long> written = new HashSet<>();
+        int i = 0;
+        for (BufferedWriteBatch batch : batches) {
+            for (BufferedWriteBatch.Write write : batch.getWrites()) {
+                long l = keyToLong(write.key);
+
+                boolean exists = index.contains(l) || written.contains(l);
+                if (!write.added && !exists) {
+                    log.error("SEVERE - write called for a key that does not exist yet");
+                }
+
+                keys[i] = l;
+                data[i++] = write.value.getData();
+                written.add(l);
+                appendedSinceCheckpoint += LogRecords.size(write.value.getData());
+                stats.totalWrites++;
+                stats.totalBytesWritten += write.value.getLength();
+            }
+        }
+        int firstSegment = segments.size() - 1;
+        Location[] locations = count == 0 ? new Location[0] : append(keys, data);
+        if (sync) {
+            for (int segment = firstSegment; segment < segments.size(); segment++) {
+                try {
+                    segments.get(segment).force(false);
+                } catch (IOException e) {
+                    log.error("Error syncing segment " + segment, e);
+                    throw new StoreException(e);
+                }
+            }
+            stats.totalSyncs++;
+        }
+        // in order, so that the last write of a key wins
+        for (int j = 0; j < count; j++) {
+            index.put(keys[j], locations[j]);
+        }
+        stats.totalCommits += batches.size();
+        if (indexCheckpointSize > 0 && appendedSinceCheckpoint >= indexCheckpointSize) {
+            writeIndexCheckpoint();
+        }
+    }
+
+    public synchronized void delete(final Key key) throws StoreException, IllegalArgumentException {
+        long l = keyToLong(key);
+        if (l == firstKey) {
+            throw new IllegalArgumentException("Cannot delete first key");
+        }
+
+        if (index.remove(l)) {
+            append(l, null);
+        }
+    }
+
+    public void compact(final Key horizon, final Predicate<Key> live) throws StoreException {
+        synchronized (compactionLock) {
+            compactSegments(keyToLong(horizon), live);
+        }
+    }
+
+    private void compactSegments(final long limit, final Predicate<Key> live) throws StoreException {
+        List<Integer> candidates = new ArrayList<>();
+        int active;
+        synchronized (this) {
+            active = segments.size() - 1;
+            for (int segment = 0; segment <= active; segment++) {
+                if (segments.get(segment) != null) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        List<Integer> rewritten = new ArrayList<>();
+        try {
+            for (int segment : candidates) {
+                FileChannel channel = segments.get(segment);
+                boolean keepTombstones = hasOlderSegment(segment);
+                long[] liveBytes = { 0 };
+                long end = LogRecords.scan(channel, 0, (key, offset, data) -> {
+                    long size = RECORD_HEADER_SIZE + (data == null ? 0 : data.remaining());
+                    compactionLimiter.acquire(size);
+                    if (data == null) {
+                        liveBytes[0] += keepTombstones ? size : 0;
+                    } else if (key != firstKey && key <= limit && !live.test(longToKey(key))) {
+                        deleteIfAt(key, segment, offset);
+                    } else if (isAt(index.get(key), segment, offset)) {
+                        liveBytes[0] += size;
+                    }
+                });
+                // the active segment only gets its dead keys deleted, it is rewritten once it has been rolled
+                if (segment == active || liveBytes[0] >= end * compactionRatio) {
+                    continue;
+                }
+                LogRecords.scan(channel, 0, (key, offset, data) -> {
+                    if (data == null) {
+                        if (keepTombstones) {
+                            appendTombstoneIfDeleted(key);
+                        }
+                    } else {
+                        byte[] bytes = new byte[data.remaining()];
+                        data.get(bytes);
+                        moveIfAt(key, segment, offset, bytes);
+                    }
+                    compactionLimiter.acquire(RECORD_HEADER_SIZE + (data == null ? 0 : data.remaining()));
+                });
+                rewritten.add(segment);
+            }
+        } catch (IOException e) {
+            log.error("Error compacting segments in " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+
+        if (!rewritten.isEmpty()) {
+            reclaim(rewritten);
+        }
+        log.info("SegmentedKeyValueStore compacted " + candidates.size() + " segments, rewrote " + rewritten.size());
+    }
+
+    private boolean hasOlderSegment(final int segment) {
+        for (int older = 0; older < segment; older++) {
+            if (segments.get(older) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAt(final Location location, final int segment, final long offset) {
+        return location != null && location.segment == segment && location.offset == offset;
+    }
+
+    private synchronized void deleteIfAt(final long key, final int segment, final long offset) throws StoreException {
+        if (isAt(index.get(key), segment, offset)) {
+            index.remove(key);
+            append(key, null);
+        }
+    }
+
+    /**
+     * Copies a tombstone, unless the key was written again since: appended after the newer record, the tombstone would
+     * delete the key once the log is replayed.
+     */
+    private synchronized void appendTombstoneIfDeleted(final long key) throws StoreException {
+        if (index.get(key) == null) {
+            append(key, null);
+            appendedSinceCheckpoint += LogRecords.size(null);
+        }
+    }
+
+    private synchronized void moveIfAt(final long key, final int segment, final long offset, final byte[] data) throws StoreException {
+        if (isAt(index.get(key), segment, offset)) {
+            index.put(key, append(key, data));
+            appendedSinceCheckpoint += LogRecords.size(data);
+        }
+    }
+
+    /**
+     * Deletes segments of which every live record has been appended again, once the index no longer refers to them.
+     */
+    private void reclaim(final List<Integer> rewritten) throws StoreException {
+        List<FileChannel> channels = new ArrayList<>();
+        synchronized (this) {
+            writeIndexCheckpoint();
+            for (int segment : rewritten) {
+                channels.add(segments.get(segment));
+                segments.set(segment, null);
+                if (mmap) {
+                    mappedSegments.set(segment, null);
+                }
+            }
+        }
+        long reclaimed = 0;
+        try {
+            for (int i = 0; i < rewritten.size(); i++) {
+                reclaimed += channels.get(i).size();
+                channels.get(i).close();
+                Files.delete(Paths.get(segmentFileName(rewritten.get(i))));
+            }
+            try (FileChannel directory = FileChannel.open(Paths.get(storeDirectoryName), StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+        } catch (IOException e) {
+            log.error("Error deleting compacted segments in " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+        synchronized (this) {
+            stats.totalBytesReclaimed += reclaimed;
+        }
+    }
+
+    public synchronized void shutdown() throws StoreException {
+        executor.shutdown();
+        writeIndexCheckpoint();
+        try {
+            for (FileChannel channel : segments) {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error closing segments in " + storeDirectoryName, e);
+            throw new StoreException(e);
+        }
+        segments.clear();
+        mappedSegments.clear();
+    }
+
+    public Stamp generateStamp() {
+        return TrivialStampGenerator.generateStamp();
+    }
+
+    public Stamp calculateSnapshotStamp(final Instant instant) {
+        return TrivialStampGenerator.calculateSnapshotStamp(instant);
+    }
+
+    public KeyValueStoreStatistics getStatistics() {
+        return stats;
+    }
+
+}
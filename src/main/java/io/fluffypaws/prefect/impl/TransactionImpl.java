@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.fluffypaws.prefect.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import io.fluffypaws.prefect.api.ImmutableObject;
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.Object;
+import io.fluffypaws.prefect.api.Stamp;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Transaction;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * Stages patches per object until commit. Values and new objects get their keys from the batch right away, a new
+ * object is added with an empty placeholder that is overwritten with its record when the transaction is committed.
+ *
+ * On commit the write locks of all changed objects are taken, in stripe order, and all patches get the same stamp.
+ *
+ * The transaction pins its keys against the {@link Compactor} until it is committed or rolled back.
+ */
+class TransactionImpl implements Transaction {
+
+    private static class StagedPatch {
+        final ObjectImpl.PatchType type;
+        final String childName;
+        final Key key;
+        final Value value;
+        StagedPatch(final ObjectImpl.PatchType type, final String childName, final Key key, final Value value) {
+            this.type = type;
+            this.childName = childName;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class StagedObject {
+        final Key key;
+        final boolean created;
+        final Value value;
+        final List<StagedPatch> patches = new ArrayList<>();
+        ObjectImpl.ObjectHistoryStore ohs;
+        StagedObject(final Key key, final boolean created, final Value value) {
+            this.key = key;
+            this.created = created;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An object as seen by the transaction: the committed object with the staged patches on top.
+     */
+    private class TransactionObject implements Object {
+        private final Key key;
+        private final Stamp creation;
+        private TransactionObject(final Key key, final Stamp creation) {
+            this.key = key;
+            this.creation = creation;
+        }
+        private StagedObject getStaged() {
+            return staged.get(key);
+        }
+        private boolean isCreated() {
+            StagedObject object = getStaged();
+            return object != null && object.created;
+        }
+        private Object getCommitted() throws StoreException {
+            return objectStore.get(key);
+        }
+        /**
+         * Returns the last staged patch that sets the value, or changes the child with the given name if it is not null.
+         */
+        private StagedPatch getLastPatch(final String name) {
+            StagedObject object = getStaged();
+            if (object != null) {
+                for (int i = object.patches.size() - 1; i >= 0; i--) {
+                    StagedPatch patch = object.patches.get(i);
+                    if (name == null ? patch.type == ObjectImpl.PatchType.SET_VALUE : name.equals(patch.childName)) {
+                        return patch;
+                    }
+                }
+            }
+            return null;
+        }
+        public Key getKey() {
+            return key;
+        }
+        public Stamp getCreation() {
+            return creation;
+        }
+        public Stamp getStamp() throws StoreException {
+            return isCreated() ? null : getCommitted().getStamp();
+        }
+        public ImmutableObject get(final Stamp stamp) throws StoreException {
+            return isCreated() ? null : getCommitted().get(stamp);
+        }
+        public Value getValue() throws StoreException {
+            StagedPatch patch = getLastPatch(null);
+            if (patch != null) {
+                return patch.value;
+            }
+            return isCreated() ? getStaged().value : getCommitted().getValue();
+        }
+        public Iterator<String> getChildNames() throws StoreException {
+            LinkedHashSet<String> names = new LinkedHashSet<>();
+            if (!isCreated()) {
+                getCommitted().getChildNames().forEachRemaining(names::add);
+            }
+            StagedObject object = getStaged();
+            if (object != null) {
+                for (StagedPatch patch : object.patches) {
+                    if (patch.type == ObjectImpl.PatchType.ADD_CHILD) {
+                        names.add(patch.childName);
+                    } else if (patch.type == ObjectImpl.PatchType.DELETE_CHILD) {
+                        names.remove(patch.childName);
+                    }
+                }
+            }
+            return names.iterator();
+        }
+        public Object getChild(final String name) throws StoreException {
+            StagedPatch patch = getLastPatch(name);
+            if (patch != null) {
+                return patch.type == ObjectImpl.PatchType.ADD_CHILD ? new TransactionObject(patch.key, null) : null;
+            }
+            if (isCreated()) {
+                return null;
+            }
+            Object child = getCommitted().getChild(name);
+            return child == null ? null : new TransactionObject(child.getKey(), child.getCreation());
+        }
+        public void setValue(final Value value) throws StoreException {
+            checkOpen();
+            Key valueKey = objectStore.addValue(value, batch, pin, added);
+            stage(key).patches.add(new StagedPatch(ObjectImpl.PatchType.SET_VALUE, null, valueKey, value));
+        }
+        public Object addChild(final String name, final Value value) throws StoreException {
+            checkOpen();
+            Key childKey = batch.add(new Value());
+            staged.put(childKey, new StagedObject(childKey, true, value));
+            stage(key).patches.add(new StagedPatch(ObjectImpl.PatchType.ADD_CHILD, name, childKey, null));
+            return new TransactionObject(childKey, null);
+        }
+        public void deleteChild(final String name) throws StoreException {
+            checkOpen();
+            stage(key).patches.add(new StagedPatch(ObjectImpl.PatchType.DELETE_CHILD, name, null, null));
+        }
+    }
+
+    private final ObjectStoreImpl objectStore;
+    private final KeyValueStore store;
+    private final WriteBatch batch;
+    private final Compactor.Pin pin;
+    private final List<ValueDeduplicator.Added> added = new ArrayList<>();
+    private final LinkedHashMap<Key, StagedObject> staged = new LinkedHashMap<>();
+    private boolean open = true;
+
+    TransactionImpl(final ObjectStoreImpl objectStore) {
+        this.objectStore = objectStore;
+        this.store = objectStore.getKeyValueStore();
+        this.pin = objectStore.getCompactor().pin();
+        this.batch = store.createWriteBatch();
+    }
+
+    private void checkOpen() throws IllegalStateException {
+        if (!open) {
+            throw new IllegalStateException("Transaction was already committed or rolled back");
+        }
+    }
+
+    private StagedObject stage(final Key key) {
+        return staged.computeIfAbsent(key, k -> new StagedObject(key, false, null));
+    }
+
+    public Object getRoot() throws StoreException {
+        return get(store.getFirstKey());
+    }
+
+    public Object get(final Key key) throws StoreException {
+        StagedObject object = staged.get(key);
+        if (object != null && object.created) {
+            return new TransactionObject(key, null);
+        }
+        return new TransactionObject(key, objectStore.get(key).getCreation());
+    }
+
+    public void commit() throws StoreException, IllegalStateException {
+        checkOpen();
+        open = false;
+
+        List<Key> changed = new ArrayList<>();
+        for (StagedObject object : staged.values()) {
+            if (!object.created && !object.patches.isEmpty()) {
+                changed.add(object.key);
+            }
+        }
+        List<ReadWriteLock> locks = objectStore.getLocks(changed);
+        for (ReadWriteLock lock : locks) {
+            lock.writeLock().lock();
+        }
+        try {
+            Stamp stamp = store.generateStamp();
+            for (StagedObject object : staged.values()) {
+                if (object.created) {
+                    object.ohs = ObjectImpl.InitialObjectStore.create(objectStore, object.key, object.value, stamp, batch);
+                }
+            }
+            for (StagedObject object : staged.values()) {
+                if (object.patches.isEmpty()) {
+                    continue;
+                }
+                ObjectImpl.ObjectHistoryStore ohs = object.created ? object.ohs : objectStore.readHistoryStore(object.key);
+                for (StagedPatch patch : object.patches) {
+                    ohs = ohs.addPatch(new ObjectImpl.Patch(stamp, patch.type, patch.childName, patch.key), batch);
+                }
+                object.ohs = ohs;
+            }
+            batch.commit();
+            for (StagedObject object : staged.values()) {
+                objectStore.cacheHistoryStore(object.key, object.ohs);
+            }
+            objectStore.registerValues(added);
+        } catch (StoreException e) {
+            // cached objects may already contain some of the patches
+            for (Key key : changed) {
+                objectStore.evictHistoryStore(key);
+            }
+            throw e;
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).writeLock().unlock();
+            }
+            objectStore.getCompactor().unpin(pin);
+        }
+    }
+
+    public void rollback() throws IllegalStateException {
+        checkOpen();
+        open = false;
+        staged.clear();
+        objectStore.getCompactor().unpin(pin);
+    }
+
+}
@@ -17,6 +17,7 @@
 package io.fluffypaws.prefect.impl;
 
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.fluffypaws.prefect.api.Stamp;
 
@@ -26,11 +27,13 @@ import io.fluffypaws.prefect.api.Stamp;
  * that takes into account:
  * - the system time of server can be updated to a "lower" value (due to sysadmin manual action or NTP)
  * - there are multiple servers generating stamps
+ *
+ * Stamps are strictly increasing within this process and can be generated concurrently without locking: the last
+ * generated stamp is kept as nanoseconds since the epoch, a stamp that would not be later is bumped by a nanosecond.
  */
 public class TrivialStampGenerator {
 
-    static Instant lastGeneratedInstant = null;
-    static long lastManualNanos = 0;
+    static final AtomicLong lastGeneratedNanos = new AtomicLong(Long.MIN_VALUE);
 
     static class StampImpl implements Stamp {
 
@@ -66,14 +69,14 @@ public class TrivialStampGenerator {
 
     public static Stamp generateStamp() {
         Instant now = Instant.now();
-        if (now.equals(lastGeneratedInstant)) {
-            lastManualNanos++;
-            now = now.plusNanos(lastManualNanos);
-        } else {
-            lastGeneratedInstant = now;
-            lastManualNanos = 0;
+        long nowNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        while (true) {
+            long last = lastGeneratedNanos.get();
+            long next = nowNanos > last ? nowNanos : last + 1;
+            if (lastGeneratedNanos.compareAndSet(last, next)) {
+                return new StampImpl(Instant.ofEpochSecond(0, next));
+            }
         }
-        return new StampImpl(now);
     }
 
     public static Stamp calculateSnapshotStamp(Instant instant) {
@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.ObjectStoreStatistics;
+import io.fluffypaws.prefect.api.StoreException;
+import io.fluffypaws.prefect.api.Value;
+import io.fluffypaws.prefect.api.WriteBatch;
+
+/**
+ * Remembers the key under which a value with the same contents was stored recently, by the SHA-256 digest of the
+ * contents, so that setting a value that is already stored refers to the existing key instead of adding a copy. The
+ * table is bounded, the least recently used digests are forgotten, and it is not persisted: after a restart only the
+ * values written since are shared.
+ *
+ * A key stays in the store as long as any object refers to it, see {@link Compactor}. A reused key is older than the
+ * lowest pin though, so a change that reuses a key records it in its {@link Compactor.Pin}, and while the compactor
+ * runs every reused key is tracked so that it is kept even if the walk missed the change that refers to it. Keys the
+ * compactor is about to delete are purged from the table first.
+ */
+final class ValueDeduplicator {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    /**
+     * A value that a change added to its batch, it can be shared once the change is committed.
+     */
+    static final class Added {
+        private final ByteBuffer digest;
+        private final Key key;
+        private Added(final ByteBuffer digest, final Key key) {
+            this.digest = digest;
+            this.key = key;
+        }
+    }
+
+    private final int size;
+    private final ObjectStoreStatistics stats;
+    private final LinkedHashMap<ByteBuffer, Key> keys;
+    private Set<Key> reused;
+
+    ValueDeduplicator(final int size, final ObjectStoreStatistics stats) {
+        this.size = size;
+        this.stats = stats;
+        this.keys = new LinkedHashMap<ByteBuffer, Key>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, Key> eldest) {
+                return size() > ValueDeduplicator.this.size;
+            }
+        };
+    }
+
+    private static ByteBuffer digest(final Value value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+            digest.update(value.getBuffer());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the key of a stored value with the same contents and records it in the pin of the change that is going
+     * to refer to it. Otherwise adds the value to the batch, the caller registers it once the batch is committed.
+     */
+    Key add(final Value value, final WriteBatch batch, final Compactor.Pin pin, final List<Added> added) throws StoreException {
+        ByteBuffer digest = digest(value);
+        synchronized (this) {
+            Key key = keys.get(digest);
+            if (key != null) {
+                pin.reused.add(key);
+                if (reused != null) {
+                    reused.add(key);
+                }
+                stats.dedupHits++;
+                stats.dedupBytesSaved += value.getLength();
+                return key;
+            }
+        }
+        Key key = batch.add(value);
+        added.add(new Added(digest, key));
+        return key;
+    }
+
+    synchronized void register(final List<Added> added) {
+        for (Added value : added) {
+            keys.put(value.digest, value.key);
+        }
+    }
+
+    /**
+     * Starts tracking the keys that are reused while compacting, including the ones reused by changes in progress.
+     * @return the tracked keys, updated until {@link #stopTracking()}
+     */
+    synchronized Set<Key> startTracking(final Collection<Compactor.Pin> pins) {
+        reused = ConcurrentHashMap.newKeySet();
+        for (Compactor.Pin pin : pins) {
+            reused.addAll(pin.reused);
+        }
+        return reused;
+    }
+
+    synchronized void stopTracking() {
+        reused = null;
+    }
+
+    /**
+     * Forgets every key that is not live, so that it cannot be reused once the compactor deletes it.
+     */
+    synchronized void purge(final Predicate<Key> live) {
+        for (Iterator<Key> i = keys.values().iterator(); i.hasNext(); ) {
+            if (!live.test(i.next())) {
+                i.remove();
+            }
+        }
+    }
+
+}
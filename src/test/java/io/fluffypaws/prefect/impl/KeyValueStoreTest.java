@@ -16,25 +16,63 @@
 
 package io.fluffypaws.prefect.impl;
 
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
 import io.fluffypaws.prefect.api.Key;
 import io.fluffypaws.prefect.api.StoreException;
 import io.fluffypaws.prefect.api.Value;
 import io.fluffypaws.prefect.api.KeyValueStore;
+import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
 import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.WriteBatch;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 
+@RunWith(Parameterized.class)
 public class KeyValueStoreTest {
 
+    @Parameterized.Parameters(name = "{0} mmap={1} wal={2}")
+    public static Collection<Object[]> implementations() {
+        return Arrays.asList(new Object[][] {
+                { "filesystem", false, false },
+                { "filesystem", false, true },
+                { "segmented", false, false },
+                { "segmented", true, false }
+        });
+    }
+
+    @Parameterized.Parameter(0)
+    public String implementation;
+
+    @Parameterized.Parameter(1)
+    public boolean mmap;
+
+    @Parameterized.Parameter(2)
+    public boolean wal;
+
+    private Properties properties;
     private KeyValueStore store;
 
     @Rule
@@ -42,8 +80,14 @@ public class KeyValueStoreTest {
 
     @Before
     final public void initializeStore() {
-        Properties properties = new Properties();
+        properties = new Properties();
         properties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, temporaryFolder.getRoot().getAbsolutePath());
+        properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, implementation);
+        properties.setProperty(SegmentedKeyValueStore.STORE_READ_MMAP_KEY, String.valueOf(mmap));
+        properties.setProperty(SegmentedKeyValueStore.STORE_SEGMENT_SIZE_KEY, String.valueOf(64));
+        properties.setProperty(SegmentedKeyValueStore.STORE_INDEX_CAPACITY_KEY, String.valueOf(4));
+        properties.setProperty(FileSystemKeyValueStore.STORE_WAL_KEY, String.valueOf(wal));
+        properties.setProperty(FileSystemKeyValueStore.STORE_WAL_CHECKPOINT_SIZE_KEY, String.valueOf(256));
         store = StoreFactory.createKeyValueStore(properties);
         assertThat(store).isNotNull();
     }
@@ -65,10 +109,342 @@ public class KeyValueStoreTest {
         assertThat(store.read(key1)).isNull();
     }
 
+    @Test
+    public void testAsync() throws Exception {
+        List<CompletableFuture<Key>> added = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            added.add(store.addAsync(new Value(("value " + i).getBytes())));
+        }
+        List<CompletableFuture<Value>> reads = new ArrayList<>();
+        for (CompletableFuture<Key> key : added) {
+            reads.add(store.readAsync(key.get()));
+        }
+        for (int i = 0; i < reads.size(); i++) {
+            assertThat(reads.get(i).get().getData()).isEqualTo(("value " + i).getBytes());
+        }
+
+        Key key = added.get(0).get();
+        store.writeAsync(key, new Value("overwritten".getBytes())).get();
+        assertThat(store.readAsync(key).get().getData()).isEqualTo("overwritten".getBytes());
+        assertThat(store.read(key).getData()).isEqualTo("overwritten".getBytes());
+
+        store.delete(key);
+        assertThat(store.readAsync(key).get()).isNull();
+    }
+
+    @Test
+    public void testOverwriteAcrossSegments() throws StoreException {
+        Key key = store.add(new Value("first".getBytes()));
+        for (int i = 0; i < 20; i++) {
+            store.add(new Value(("filler " + i).getBytes()));
+        }
+        store.write(key, new Value("second".getBytes()));
+
+        assertThat(store.read(key).getData()).isEqualTo("second".getBytes());
+        assertThat(store.read(store.getFirstKey()).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testWriteBatch() throws StoreException {
+        Key existing = store.add(new Value("existing".getBytes()));
+
+        WriteBatch batch = store.createWriteBatch();
+        Key added = batch.add(new Value("first".getBytes()));
+        batch.write(added, new Value("second".getBytes()));
+        batch.write(existing, new Value("changed".getBytes()));
+
+        assertThat(store.read(added)).isNull();
+        assertThat(store.read(existing).getData()).isEqualTo("existing".getBytes());
+
+        long writes = store.getStatistics().totalWrites;
+        batch.commit();
+        assertThat(store.getStatistics().totalWrites - writes).isEqualTo(2);
+        assertThat(store.read(added).getData()).isEqualTo("second".getBytes());
+        assertThat(store.read(existing).getData()).isEqualTo("changed".getBytes());
+
+        try {
+            batch.commit();
+            fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testReopen() throws StoreException {
+        Key key1 = store.add(new Value("1".getBytes()));
+        Key key2 = store.add(new Value("2".getBytes()));
+        for (int i = 0; i < 20; i++) {
+            store.add(new Value(("filler " + i).getBytes()));
+        }
+        store.write(key1, new Value("changed".getBytes()));
+        store.delete(key2);
+        Key last = store.add(new Value("last".getBytes()));
+        store.shutdown();
+
+        KeyValueStore reopened = StoreFactory.createKeyValueStore(properties);
+        assertThat(reopened).isNotNull();
+        assertThat(reopened.read(reopened.getFirstKey()).isEmpty()).isTrue();
+        assertThat(reopened.read(key1).getData()).isEqualTo("changed".getBytes());
+        assertThat(reopened.read(key2)).isNull();
+        assertThat(reopened.add(new Value("next".getBytes()))).isGreaterThan(last);
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws StoreException, IOException {
+        Assume.assumeTrue(wal || implementation.equals("segmented"));
+        Key key = store.add(new Value("survives".getBytes()));
+
+        // no shutdown: the file that was not synced yet is lost and the log ends in a torn record
+        Path directory = temporaryFolder.getRoot().toPath();
+        if (wal) {
+            Files.delete(directory.resolve(key.toString()));
+        }
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, wal ? "wal-*" : "segment-*")) {
+            files.forEach(logs::add);
+        }
+        Collections.sort(logs);
+        Files.write(logs.get(logs.size() - 1), new byte[] { 1, 2, 3, 4, 5 }, StandardOpenOption.APPEND);
+
+        KeyValueStore recovered = StoreFactory.createKeyValueStore(properties);
+        assertThat(recovered).isNotNull();
+        assertThat(recovered.read(key).getData()).isEqualTo("survives".getBytes());
+        Key next = recovered.add(new Value("next".getBytes()));
+        assertThat(next).isGreaterThan(key);
+        assertThat(recovered.read(next).getData()).isEqualTo("next".getBytes());
+    }
+
+    @Test
+    public void testRecoverTornBatch() throws StoreException, IOException {
+        Assume.assumeTrue(wal || implementation.equals("segmented"));
+        Key before = store.add(new Value("before".getBytes()));
+        WriteBatch batch = store.createWriteBatch();
+        List<Key> added = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            added.add(batch.add(new Value(("batched " + i).getBytes())));
+        }
+        batch.commit();
+
+        // no shutdown: the log ends in the middle of the batch, whose files were never written
+        Path directory = temporaryFolder.getRoot().toPath();
+        if (wal) {
+            for (Key key : added) {
+                Files.delete(directory.resolve(key.toString()));
+            }
+        }
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, wal ? "wal-*" : "segment-*")) {
+            files.forEach(logs::add);
+        }
+        Collections.sort(logs);
+        try (FileChannel channel = FileChannel.open(logs.get(logs.size() - 1), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        KeyValueStore recovered = StoreFactory.createKeyValueStore(properties);
+        assertThat(recovered).isNotNull();
+        assertThat(recovered.read(before).getData()).isEqualTo("before".getBytes());
+        for (Key key : added) {
+            assertThat(recovered.read(key)).isNull();
+        }
+        Key next = recovered.add(new Value("next".getBytes()));
+
+        // what is left of the torn batch is not replayed after the records appended since
+        KeyValueStore again = StoreFactory.createKeyValueStore(properties);
+        assertThat(again).isNotNull();
+        assertThat(again.read(before).getData()).isEqualTo("before".getBytes());
+        assertThat(again.read(next).getData()).isEqualTo("next".getBytes());
+        for (Key key : added) {
+            if (!key.equals(next)) {
+                assertThat(again.read(key)).isNull();
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedCheckpoint() throws StoreException, IOException {
+        Assume.assumeTrue(wal);
+        store.add(new Value("1".getBytes()));
+        store.shutdown();
+
+        Path checkpoint = temporaryFolder.getRoot().toPath().resolve(FileSystemKeyValueStore.CHECKPOINT_FILE_NAME);
+        try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.WRITE)) {
+            channel.truncate(FileSystemKeyValueStore.CHECKPOINT_SIZE / 2);
+        }
+        // reported as a corrupt checkpoint rather than escaping as an unchecked exception
+        assertThat(StoreFactory.createKeyValueStore(properties)).isNull();
+    }
+
+    @Test
+    public void testCrashAfterCleanRestart() throws StoreException, IOException {
+        Key key1 = store.add(new Value("1".getBytes()));
+        store.shutdown();
+
+        KeyValueStore second = StoreFactory.createKeyValueStore(properties);
+        Key key2 = second.add(new Value("2".getBytes()));
+        second.delete(key1);
+
+        // no shutdown: whatever the clean shutdown checkpointed must be combined with the changes made since
+        for (boolean corruptIndex : new boolean[] { false, true }) {
+            Path index = temporaryFolder.getRoot().toPath().resolve(SegmentedKeyValueStore.INDEX_FILE_NAME);
+            if (corruptIndex) {
+                if (!Files.exists(index)) {
+                    continue;
+                }
+                byte[] bytes = Files.readAllBytes(index);
+                bytes[bytes.length / 2] ^= 1;
+                Files.write(index, bytes);
+            }
+            KeyValueStore recovered = StoreFactory.createKeyValueStore(properties);
+            assertThat(recovered).isNotNull();
+            assertThat(recovered.read(key1)).isNull();
+            assertThat(recovered.read(key2).getData()).isEqualTo("2".getBytes());
+            assertThat(recovered.add(new Value("3".getBytes()))).isGreaterThan(key2);
+        }
+    }
+
+    @Test
+    public void testManyKeys() throws StoreException {
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(store.add(new Value(String.valueOf(i).getBytes())));
+        }
+        for (int i = 0; i < keys.size(); i += 3) {
+            store.delete(keys.get(i));
+        }
+        store.shutdown();
+
+        KeyValueStore reopened = StoreFactory.createKeyValueStore(properties);
+        assertThat(reopened).isNotNull();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 3 == 0) {
+                assertThat(reopened.read(keys.get(i))).isNull();
+            } else {
+                assertThat(reopened.read(keys.get(i)).getData()).isEqualTo(String.valueOf(i).getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testCompact() throws StoreException {
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            keys.add(store.add(new Value(String.valueOf(i).getBytes())));
+        }
+        for (int i = 0; i < keys.size(); i += 4) {
+            store.write(keys.get(i), new Value(("changed " + i).getBytes()));
+        }
+        store.delete(keys.get(2));
+        Key horizon = store.getHighestKey();
+        Key above = store.add(new Value("above".getBytes()));
+
+        store.compact(horizon, key -> key.toLong() % 2 == 0);
+        Key next = store.add(new Value("next".getBytes()));
+        assertThat(next).isGreaterThan(above);
+
+        for (KeyValueStore s : Arrays.asList(store, null)) {
+            if (s == null) {
+                store.shutdown();
+                s = StoreFactory.createKeyValueStore(properties);
+                assertThat(s).isNotNull();
+            }
+            assertThat(s.read(s.getFirstKey())).isNotNull();
+            assertThat(s.read(above).getData()).isEqualTo("above".getBytes());
+            assertThat(s.read(next).getData()).isEqualTo("next".getBytes());
+            assertThat(s.read(keys.get(2))).isNull();
+            for (int i = 0; i < keys.size(); i++) {
+                Key key = keys.get(i);
+                if (key.toLong() % 2 != 0 || i == 2) {
+                    assertThat(s.read(key)).isNull();
+                } else {
+                    assertThat(s.read(key).getData()).isEqualTo((i % 4 == 0 ? "changed " + i : String.valueOf(i)).getBytes());
+                }
+            }
+        }
+        assertThat(store.getStatistics().totalBytesReclaimed).isGreaterThan(0);
+    }
+
+    @Test
+    public void testCompactDoesNotReuseKeys() throws StoreException {
+        for (int i = 0; i < 10; i++) {
+            store.add(new Value(("dead " + i).getBytes()));
+        }
+        Key last = store.getHighestKey();
+        store.compact(last, key -> false);
+
+        // no shutdown: the recovered store must not hand out the keys of deleted values again
+        KeyValueStore recovered = StoreFactory.createKeyValueStore(properties);
+        assertThat(recovered).isNotNull();
+        assertThat(recovered.add(new Value("next".getBytes()))).isGreaterThan(last);
+    }
+
+    @Test
+    public void testCompactKeepsRewrittenKey() throws StoreException, IOException {
+        Assume.assumeTrue(implementation.equals("segmented"));
+        store.shutdown();
+        properties.setProperty(SegmentedKeyValueStore.STORE_SEGMENT_COMPACTION_RATIO_KEY, String.valueOf(1.0));
+        store = StoreFactory.createKeyValueStore(properties);
+        Key key = store.add(new Value("first".getBytes()));
+        for (int i = 0; i < 4; i++) {
+            store.add(new Value(("filler " + i).getBytes()));
+        }
+        store.delete(key);
+        for (int i = 0; i < 4; i++) {
+            store.add(new Value(("filler " + i).getBytes()));
+        }
+        store.write(key, new Value("again".getBytes()));
+
+        // the tombstone is older than the record in the active segment, it must not be copied after it
+        store.compact(store.getHighestKey(), k -> true);
+        assertThat(store.read(key).getData()).isEqualTo("again".getBytes());
+        Files.delete(temporaryFolder.getRoot().toPath().resolve(SegmentedKeyValueStore.INDEX_FILE_NAME));
+        KeyValueStore replayed = StoreFactory.createKeyValueStore(properties);
+        assertThat(replayed).isNotNull();
+        assertThat(replayed.read(key).getData()).isEqualTo("again".getBytes());
+    }
+
+    @Test
+    public void testCompression() throws StoreException {
+        StringBuilder repetitive = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            repetitive.append("child-").append(i).append(" ");
+        }
+        byte[] magic = { (byte)0xfe, 'p', 'z', 1, 0, 0, 0, 9, 42 };
+        byte[] random = new byte[256];
+        new Random(1).nextBytes(random);
+        List<byte[]> values = Arrays.asList(repetitive.toString().getBytes(), "short".getBytes(), magic, random, new byte[0]);
+
+        store.shutdown();
+        List<Key> keys = new ArrayList<>();
+        for (String codec : new String[] { "lz4", "deflate", "none" }) {
+            properties.setProperty(CompressingKeyValueStore.STORE_COMPRESSION_KEY, codec);
+            KeyValueStore compressed = StoreFactory.createKeyValueStore(properties);
+            assertThat(compressed).isNotNull();
+            for (byte[] value : values) {
+                keys.add(compressed.add(new Value(value)));
+            }
+            WriteBatch batch = compressed.createWriteBatch();
+            keys.add(batch.add(new Value(values.get(0))));
+            batch.commit();
+            if (!codec.equals("none")) {
+                KeyValueStoreStatistics stats = compressed.getStatistics();
+                assertThat(stats.totalBytesCompressed).isLessThan(stats.totalBytesUncompressed);
+            }
+
+            // everything written with the earlier codecs stays readable
+            for (int i = 0; i < keys.size(); i++) {
+                int index = i % (values.size() + 1);
+                assertThat(compressed.read(keys.get(i)).getData()).isEqualTo(values.get(index == values.size() ? 0 : index));
+            }
+            compressed.shutdown();
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testCannotDeleteFirstKey() {
         try {
-            store.delete(new Key(String.valueOf(0).getBytes(StandardCharsets.UTF_8)));
+            store.delete(new Key(0));
         } catch (StoreException e) {
             fail("Should have thrown IllegalArgumentException");
         }
@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2016 FluffyPaws Inc. (http://www.fluffypaws.io)
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.fluffypaws.prefect.impl;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import io.fluffypaws.prefect.api.Key;
+import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
+import io.fluffypaws.prefect.api.Object;
+import io.fluffypaws.prefect.api.ObjectStore;
+import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.Transaction;
+import io.fluffypaws.prefect.api.Value;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(Parameterized.class)
+public class ObjectStoreConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int CHILDREN_PER_THREAD = 100;
+
+    @Parameterized.Parameters(name = "{0} cache={1} sync={2}")
+    public static Collection<java.lang.Object[]> implementations() {
+        return Arrays.asList(new java.lang.Object[][] {
+                { "filesystem", 10000, false },
+                { "segmented", 10000, false },
+                { "segmented", 0, false },
+                { "segmented", 10000, true }
+        });
+    }
+
+    @Parameterized.Parameter(0)
+    public String implementation;
+
+    @Parameterized.Parameter(1)
+    public int cacheSize;
+
+    @Parameterized.Parameter(2)
+    public boolean sync;
+
+    private Properties properties;
+    private ObjectStore objectStore;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    final public void initializeStore() {
+        properties = new Properties();
+        properties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, temporaryFolder.getRoot().getAbsolutePath());
+        properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, implementation);
+        properties.setProperty(ObjectStoreImpl.STORE_LIST_COMPACTING_THRESHOLD_KEY, String.valueOf(50));
+        properties.setProperty(ObjectStoreImpl.STORE_PATCH_BLOCK_SIZE_KEY, String.valueOf(8));
+        properties.setProperty(ObjectStoreImpl.STORE_CACHE_SIZE_KEY, String.valueOf(cacheSize));
+        properties.setProperty(StoreFactory.STORE_SYNC_KEY, String.valueOf(sync));
+        properties.setProperty(SegmentedKeyValueStore.STORE_SEGMENT_SIZE_KEY, String.valueOf(16 * 1024));
+        objectStore = StoreFactory.createObjectStore(properties);
+        assertThat(objectStore).isNotNull();
+    }
+
+    private static Set<String> names(Iterator<String> iterator) {
+        Set<String> names = new HashSet<>();
+        iterator.forEachRemaining(names::add);
+        return names;
+    }
+
+    @Test
+    public void testNoLostPatches() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit((Callable<Void>) () -> {
+                // every thread uses its own instance of the shared root
+                Object root = objectStore.getRoot();
+                Object own = root.addChild("thread" + thread, null);
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    root.addChild(thread + "-" + i, null);
+                    own.addChild(String.valueOf(i), null);
+                    objectStore.getRoot().getChildNames();
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        if (sync) {
+            // concurrent patches to the shared root are grouped
+            KeyValueStoreStatistics stats = objectStore.getKeyValueStore().getStatistics();
+            assertThat(stats.totalSyncs).isGreaterThan(0).isLessThanOrEqualTo(stats.totalCommits);
+        }
+
+        // a second object store on the same key value store starts without cached objects
+        ObjectStoreImpl fresh = new ObjectStoreImpl();
+        assertThat(fresh.initialize(properties, objectStore.getKeyValueStore())).isTrue();
+
+        for (ObjectStore store : Arrays.asList(objectStore, fresh)) {
+            Object root = store.getRoot();
+            Set<String> names = names(root.getChildNames());
+            assertThat(names).hasSize(THREADS * (CHILDREN_PER_THREAD + 1));
+            for (int t = 0; t < THREADS; t++) {
+                assertThat(names(root.getChild("thread" + t).getChildNames())).hasSize(CHILDREN_PER_THREAD);
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    assertThat(names).contains(t + "-" + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncReadsWhileWriting() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit((Callable<Void>) () -> {
+                Object root = objectStore.getRoot();
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    root.addChild(thread + "-" + i, null);
+                }
+                return null;
+            }));
+        }
+        // reads that do not hold the lock never see a half written root
+        Key rootKey = objectStore.getKeyValueStore().getFirstKey();
+        int seen = 0;
+        while (seen < THREADS * CHILDREN_PER_THREAD) {
+            int count = names(objectStore.getAsyncObjectStore().get(rootKey).get().getChildNames()).size();
+            assertThat(count).isGreaterThanOrEqualTo(seen);
+            seen = count;
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testReadChildrenWhileCommitting() throws Exception {
+        // with two stripes about half of the children have a lock that comes before the lock of their parent
+        Properties striped = new Properties();
+        striped.putAll(properties);
+        striped.setProperty(StoreFactory.STORE_DIRECTORY_KEY, temporaryFolder.newFolder().getAbsolutePath());
+        striped.setProperty(ObjectStoreImpl.STORE_LOCK_STRIPES_KEY, String.valueOf(2));
+        ObjectStore store = StoreFactory.createObjectStore(striped);
+        List<Key> parents = new ArrayList<>();
+        List<Key> children = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Object parent = store.getRoot().addChild("thread" + t, null);
+            parents.add(parent.getKey());
+            children.add(parent.addChild("child", null).getKey());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2 * THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            // the commit takes the write locks of the parent and the child in stripe order, reading the child through
+            // the parent must not hold the lock of the parent while waiting for the lock of the child
+            futures.add(executor.submit((Callable<Void>) () -> {
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    Transaction transaction = store.beginTransaction();
+                    transaction.get(parents.get(thread)).setValue(new Value(String.valueOf(i).getBytes()));
+                    transaction.get(children.get(thread)).setValue(new Value(String.valueOf(i).getBytes()));
+                    transaction.commit();
+                }
+                return null;
+            }));
+            futures.add(executor.submit((Callable<Void>) () -> {
+                Object parent = store.get(parents.get(thread));
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    assertThat(parent.getChild("child").getKey()).isEqualTo(children.get(thread));
+                }
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdownNow();
+        store.getKeyValueStore().shutdown();
+    }
+
+    @Test
+    public void testCompactConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit((Callable<Void>) () -> {
+                Object own = objectStore.getRoot().addChild("thread" + thread, null);
+                for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                    Object child = own.addChild(String.valueOf(i), new Value("first".getBytes()));
+                    child.setValue(new Value(String.valueOf(i).getBytes()));
+                    own.addChild("temporary", null);
+                    own.deleteChild("temporary");
+                }
+                return null;
+            }));
+        }
+        AtomicBoolean done = new AtomicBoolean(false);
+        Future<Integer> compactions = Executors.newSingleThreadExecutor().submit(() -> {
+            int count = 0;
+            while (!done.get()) {
+                objectStore.compact(objectStore.getKeyValueStore().calculateSnapshotStamp(Instant.now()));
+                count++;
+            }
+            return count;
+        });
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        done.set(true);
+        assertThat(compactions.get()).isGreaterThan(0);
+        executor.shutdown();
+
+        objectStore.compact(objectStore.getKeyValueStore().calculateSnapshotStamp(Instant.now()));
+        Object root = objectStore.getRoot();
+        for (int t = 0; t < THREADS; t++) {
+            Object own = root.getChild("thread" + t);
+            assertThat(names(own.getChildNames())).hasSize(CHILDREN_PER_THREAD);
+            for (int i = 0; i < CHILDREN_PER_THREAD; i++) {
+                assertThat(own.getChild(String.valueOf(i)).getValue().getData()).isEqualTo(String.valueOf(i).getBytes());
+            }
+        }
+    }
+
+}
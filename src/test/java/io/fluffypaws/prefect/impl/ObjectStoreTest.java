@@ -16,8 +16,14 @@
 
 package io.fluffypaws.prefect.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Properties;
 
@@ -27,19 +33,47 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
+import io.fluffypaws.prefect.api.AsyncObjectStore;
+import io.fluffypaws.prefect.api.BulkLoader;
 import io.fluffypaws.prefect.api.Object;
 import io.fluffypaws.prefect.api.ImmutableObject;
+import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
 import io.fluffypaws.prefect.api.ObjectStore;
 import io.fluffypaws.prefect.api.Stamp;
 import io.fluffypaws.prefect.api.StoreException;
 import io.fluffypaws.prefect.api.StoreFactory;
+import io.fluffypaws.prefect.api.Transaction;
 import io.fluffypaws.prefect.api.Value;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
+@RunWith(Parameterized.class)
 public class ObjectStoreTest {
 
+    @Parameterized.Parameters(name = "{0} mmap={1} wal={2}")
+    public static Collection<java.lang.Object[]> implementations() {
+        return Arrays.asList(new java.lang.Object[][] {
+                { "filesystem", false, false },
+                { "filesystem", false, true },
+                { "segmented", false, false },
+                { "segmented", true, false }
+        });
+    }
+
+    @Parameterized.Parameter(0)
+    public String implementation;
+
+    @Parameterized.Parameter(1)
+    public boolean mmap;
+
+    @Parameterized.Parameter(2)
+    public boolean wal;
+
+    private Properties properties;
     private ObjectStore objectStore;
 
     @Rule
@@ -50,9 +84,15 @@ public class ObjectStoreTest {
 
     @Before
     final public void initializeStore() {
-        Properties properties = new Properties();
+        properties = new Properties();
         properties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, temporaryFolder.getRoot().getAbsolutePath());
+        properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, implementation);
+        properties.setProperty(SegmentedKeyValueStore.STORE_READ_MMAP_KEY, String.valueOf(mmap));
+        properties.setProperty(FileSystemKeyValueStore.STORE_WAL_KEY, String.valueOf(wal));
+        properties.setProperty(FileSystemKeyValueStore.STORE_WAL_CHECKPOINT_SIZE_KEY, String.valueOf(1024));
         properties.setProperty(ObjectStoreImpl.STORE_LIST_COMPACTING_THRESHOLD_KEY, String.valueOf(3));
+        properties.setProperty(ObjectStoreImpl.STORE_PATCH_BLOCK_SIZE_KEY, String.valueOf(2));
+        properties.setProperty(ObjectStoreImpl.STORE_DEDUP_SIZE_KEY, String.valueOf(16));
         objectStore = StoreFactory.createObjectStore(properties);
         assertThat(objectStore).isNotNull();
     }
@@ -111,6 +151,49 @@ public class ObjectStoreTest {
         assertThat(object.getChildNames().hasNext()).isFalse();
     }
 
+    @Test
+    public void testChildAddedAgainAfterDelete() throws StoreException {
+        Object root = objectStore.getRoot();
+        Object first = root.addChild("c1", null);
+        root.deleteChild("c1");
+        Stamp deleted = root.getStamp();
+        Object second = root.addChild("c1", null);
+
+        assertThat(root.getChildNames()).containsOnly("c1");
+        assertThat(root.getChild("c1").getKey()).isEqualTo(second.getKey());
+        assertThat(root.get(deleted).getChild("c1")).isNull();
+        assertThat(root.get(deleted).getChildNames().hasNext()).isFalse();
+        assertThat(root.get(first.getCreation()).getChildNames().hasNext()).isFalse();
+    }
+
+    @Test
+    public void testHistoricalViewUnaffectedByLaterPatches() throws StoreException {
+        Object root = objectStore.getRoot();
+        root.setValue(new Value("before".getBytes(StandardCharsets.UTF_8)));
+        root.addChild("c1", null);
+        ImmutableObject view = root.get(root.getStamp());
+
+        root.setValue(new Value("after".getBytes(StandardCharsets.UTF_8)));
+        root.addChild("c2", null);
+
+        assertThat(view.getValue().getData()).isEqualTo("before".getBytes(StandardCharsets.UTF_8));
+        assertThat(view.getChildNames()).containsOnly("c1");
+        assertThat(view.getStamp()).isLessThan(root.getStamp());
+    }
+
+    @Test
+    public void testCachedObjectsStayCoherent() throws StoreException {
+        Object first = objectStore.getRoot();
+        Object second = objectStore.getRoot();
+        assertThat(objectStore.getStatistics().cacheHits).isGreaterThan(0);
+
+        first.addChild("c1", null);
+        second.addChild("c2", null);
+
+        assertThat(objectStore.getRoot().getChildNames()).containsOnly("c1", "c2");
+        assertThat(objectStore.get(first.getKey()).getStamp()).isEqualTo(second.getStamp());
+    }
+
     @Test
     public void testAddChildReturnsFunctioningObject() throws StoreException {
         Object root = objectStore.getRoot();
@@ -118,6 +201,22 @@ public class ObjectStoreTest {
         c1.addChild("c2", null);
     }
 
+    @Test
+    public void testPatchesSpanningSeveralBlocks() throws StoreException {
+        Object root = objectStore.getRoot();
+        for (int i = 0; i < 10; i++) {
+            root.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        Stamp beforeDelete = root.getStamp();
+        root.deleteChild("c3");
+
+        Object reread = objectStore.getRoot();
+        assertThat(reread.getChildNames()).containsOnly("c0", "c1", "c2", "c4", "c5", "c6", "c7", "c8", "c9");
+        assertThat(reread.getChild("c7").getValue().getData()).isEqualTo("7".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.getStamp()).isEqualTo(root.getStamp());
+        assertThat(reread.get(beforeDelete).getChild("c3")).isNotNull();
+    }
+
     @Ignore
     @Test
     public void cannotAddTwoChildrenWithSameName() throws StoreException {
@@ -127,6 +226,406 @@ public class ObjectStoreTest {
         root.addChild("c1", null);
     }
 
-    // next to test: do a run that results in compacting, that will/should break now
+    @Test
+    public void testCompactingKeepsHistory() throws StoreException {
+        Object root = objectStore.getRoot();
+        Stamp[] stamps = new Stamp[8];
+        for (int i = 0; i < stamps.length; i++) {
+            root.setValue(new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+            root.addChild("c" + i, null);
+            if (i > 0) {
+                root.deleteChild("c" + (i - 1));
+            }
+            stamps[i] = root.getStamp();
+        }
+
+        Object reread = objectStore.getRoot();
+        assertThat(reread.getChildNames()).containsOnly("c7");
+        assertThat(reread.getValue().getData()).isEqualTo("7".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.getStamp()).isEqualTo(stamps[7]);
+
+        for (int i = 0; i < stamps.length; i++) {
+            ImmutableObject past = reread.get(stamps[i]);
+            assertThat(past.getStamp()).isEqualTo(stamps[i]);
+            assertThat(past.getValue().getData()).isEqualTo(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            assertThat(past.getChildNames()).containsOnly("c" + i);
+            assertThat(past.getChild("c" + i)).isNotNull();
+        }
+    }
+
+    @Test
+    public void testTransaction() throws StoreException {
+        Object root = objectStore.getRoot();
+        root.addChild("old", null);
+        Stamp before = root.getStamp();
+
+        Transaction transaction = objectStore.beginTransaction();
+        Object staged = transaction.getRoot();
+        Object parent = staged.addChild("parent", null);
+        for (int i = 0; i < 5; i++) {
+            parent.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        staged.deleteChild("old");
+        staged.setValue(new Value("new".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(staged.getChildNames()).containsOnly("parent");
+        assertThat(staged.getChild("parent").getChild("c3").getValue().getData()).isEqualTo("3".getBytes(StandardCharsets.UTF_8));
+        assertThat(objectStore.getRoot().getChildNames()).containsOnly("old");
+        assertThat(objectStore.getRoot().getValue()).isNull();
+
+        transaction.commit();
+
+        Object reread = objectStore.getRoot();
+        assertThat(reread.getChildNames()).containsOnly("parent");
+        assertThat(reread.getValue().getData()).isEqualTo("new".getBytes(StandardCharsets.UTF_8));
+        Object committedParent = reread.getChild("parent");
+        assertThat(committedParent.getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4");
+        assertThat(committedParent.getChild("c4").getValue().getData()).isEqualTo("4".getBytes(StandardCharsets.UTF_8));
+        assertThat(committedParent.getCreation()).isEqualTo(reread.getStamp());
+        assertThat(committedParent.getStamp()).isEqualTo(reread.getStamp());
+        assertThat(reread.get(before).getChildNames()).containsOnly("old");
+
+        thrown.expect(IllegalStateException.class);
+        staged.addChild("late", null);
+    }
+
+    @Test
+    public void testReopen() throws StoreException {
+        Object root = objectStore.getRoot();
+        Object c1 = root.addChild("c1", new Value("1".getBytes(StandardCharsets.UTF_8)));
+        for (int i = 0; i < 5; i++) {
+            c1.addChild("c" + i, null);
+        }
+        Stamp before = root.getStamp();
+        root.addChild("c2", null);
+        objectStore.getKeyValueStore().shutdown();
+
+        ObjectStore reopened = StoreFactory.createObjectStore(properties);
+        assertThat(reopened).isNotNull();
+        Object reread = reopened.getRoot();
+        assertThat(reread.getChildNames()).containsOnly("c1", "c2");
+        assertThat(reread.get(before).getChildNames()).containsOnly("c1");
+        assertThat(reread.getChild("c1").getValue().getData()).isEqualTo("1".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.getChild("c1").getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4");
+
+        reread.getChild("c2").addChild("c3", null);
+        assertThat(reopened.getRoot().getChild("c2").getChildNames()).containsOnly("c3");
+    }
+
+    @Test
+    public void testTransactionRollback() throws StoreException {
+        Transaction transaction = objectStore.beginTransaction();
+        transaction.getRoot().addChild("c1", null);
+        transaction.rollback();
+
+        assertThat(objectStore.getRoot().getChildNames()).isEmpty();
+        thrown.expect(IllegalStateException.class);
+        transaction.commit();
+    }
+
+    @Test
+    public void testCompact() throws StoreException {
+        Object root = objectStore.getRoot();
+        Object deleted = root.addChild("deleted", new Value("gone".getBytes(StandardCharsets.UTF_8)));
+        deleted.addChild("grandchild", null);
+        Stamp withDeleted = root.getStamp();
+        for (int i = 0; i < 8; i++) {
+            root.setValue(new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+            root.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        root.deleteChild("deleted");
+        Stamp retention = root.getStamp();
+        root.setValue(new Value("latest".getBytes(StandardCharsets.UTF_8)));
+
+        objectStore.compact(null);
+        assertThat(root.get(withDeleted).getChild("deleted").getValue().getData()).isEqualTo("gone".getBytes(StandardCharsets.UTF_8));
+
+        objectStore.compact(retention);
+        assertThat(objectStore.getKeyValueStore().read(deleted.getKey())).isNull();
+        Object reread = objectStore.getRoot();
+        assertThat(reread.getValue().getData()).isEqualTo("latest".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.get(retention).getValue().getData()).isEqualTo("7".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4", "c5", "c6", "c7");
+        assertThat(reread.getChild("c5").getValue().getData()).isEqualTo("5".getBytes(StandardCharsets.UTF_8));
+
+        reread.addChild("after", null);
+        objectStore.getKeyValueStore().shutdown();
+        ObjectStore reopened = StoreFactory.createObjectStore(properties);
+        assertThat(reopened).isNotNull();
+        assertThat(reopened.getRoot().getChildNames()).contains("c7", "after");
+    }
+
+    @Test
+    public void testCompactDropsOlderHistory() throws StoreException {
+        Object root = objectStore.getRoot();
+        root.setValue(new Value("first".getBytes(StandardCharsets.UTF_8)));
+        Stamp early = root.getStamp();
+        for (int i = 0; i < 8; i++) {
+            root.setValue(new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        objectStore.compact(null);
+        for (int i = 0; i < 8; i++) {
+            root.addChild("c" + i, null);
+        }
+        objectStore.compact(null);
+        Stamp retention = root.getStamp();
+
+        objectStore.compact(retention);
+        Object reread = objectStore.getRoot();
+        assertThat(reread.get(retention).getChildNames()).hasSize(8);
+        thrown.expect(StoreException.class);
+        reread.get(early).getValue();
+    }
+
+    @Test
+    public void testPrune() throws StoreException {
+        Object root = objectStore.getRoot();
+        Object old = root.addChild("old", new Value("old".getBytes(StandardCharsets.UTF_8)));
+        old.addChild("grandchild", null);
+        Object kept = root.addChild("kept", null);
+        Stamp early = null;
+        for (int i = 0; i < 10; i++) {
+            kept.setValue(new Value(("v" + i).getBytes(StandardCharsets.UTF_8)));
+            if (i == 5) {
+                early = kept.getStamp();
+            }
+        }
+        root.deleteChild("old");
+        Stamp retention = root.getStamp();
+        for (int i = 0; i < 5; i++) {
+            kept.setValue(new Value(("w" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        root.addChild("late", null);
+
+        objectStore.prune(retention);
+        assertThat(objectStore.getKeyValueStore().read(old.getKey())).isNull();
+        assertThat(root.getChildNames()).containsOnly("kept", "late");
+        assertThat(root.get(retention).getChildNames()).containsOnly("kept");
+        assertThat(kept.getValue().getData()).isEqualTo("w4".getBytes(StandardCharsets.UTF_8));
+        assertThat(kept.get(retention).getValue().getData()).isEqualTo("v9".getBytes(StandardCharsets.UTF_8));
+
+        kept.setValue(new Value("after".getBytes(StandardCharsets.UTF_8)));
+        objectStore.getKeyValueStore().shutdown();
+        ObjectStore reopened = StoreFactory.createObjectStore(properties);
+        assertThat(reopened).isNotNull();
+        Object reread = reopened.getRoot().getChild("kept");
+        assertThat(reread.getValue().getData()).isEqualTo("after".getBytes(StandardCharsets.UTF_8));
+        assertThat(reread.get(retention).getValue().getData()).isEqualTo("v9".getBytes(StandardCharsets.UTF_8));
+
+        thrown.expect(StoreException.class);
+        reread.get(early).getValue();
+    }
+
+    @Test
+    public void testDeduplicate() throws StoreException {
+        byte[] template = new byte[4096];
+        Arrays.fill(template, (byte)'t');
+        Object root = objectStore.getRoot();
+        Object c1 = root.addChild("c1", null);
+        Object c2 = root.addChild("c2", null);
+        c1.setValue(new Value(template));
+
+        KeyValueStoreStatistics stats = objectStore.getKeyValueStore().getStatistics();
+        long written = stats.totalBytesWritten;
+        c2.setValue(new Value(template.clone()));
+        Transaction transaction = objectStore.beginTransaction();
+        transaction.get(c1.getKey()).setValue(new Value("other".getBytes(StandardCharsets.UTF_8)));
+        transaction.get(c2.getKey()).setValue(new Value(template.clone()));
+        transaction.commit();
+        c1.setValue(new Value("other".getBytes(StandardCharsets.UTF_8)));
+        assertThat(stats.totalBytesWritten - written).isLessThan(template.length);
+        assertThat(objectStore.getStatistics().dedupHits).isEqualTo(3);
+        assertThat(objectStore.getStatistics().dedupBytesSaved).isEqualTo(2 * template.length + "other".length());
+        assertThat(c2.getValue().getData()).isEqualTo(template);
+
+        // the shared value stays as long as one of the objects refers to it
+        root.deleteChild("c1");
+        objectStore.compact(root.getStamp());
+        assertThat(objectStore.getRoot().getChild("c2").getValue().getData()).isEqualTo(template);
+        c2.setValue(new Value("unique".getBytes(StandardCharsets.UTF_8)));
+        objectStore.compact(c2.getStamp());
+        c2.setValue(new Value(template.clone()));
+        assertThat(objectStore.getRoot().getChild("c2").getValue().getData()).isEqualTo(template);
+    }
+
+    @Test
+    public void testAsyncReads() throws Exception {
+        Object root = objectStore.getRoot();
+        Object c1 = root.addChild("c1", new Value("1".getBytes(StandardCharsets.UTF_8)));
+        for (int i = 0; i < 5; i++) {
+            c1.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        c1.setValue(new Value("one".getBytes(StandardCharsets.UTF_8)));
+
+        // a second object store on the same key value store starts without cached objects
+        ObjectStoreImpl fresh = new ObjectStoreImpl();
+        assertThat(fresh.initialize(properties, objectStore.getKeyValueStore())).isTrue();
+        for (ObjectStore store : Arrays.asList(objectStore, fresh)) {
+            AsyncObjectStore async = store.getAsyncObjectStore();
+            assertThat(async.getRoot().get().getChildNames()).containsOnly("c1");
+            assertThat(async.getValue(c1.getKey()).get().getData()).isEqualTo("one".getBytes(StandardCharsets.UTF_8));
+            assertThat(async.getChild(root.getKey(), "missing").get()).isNull();
+            Object child = async.getChild(root.getKey(), "c1").get();
+            assertThat(child.getKey()).isEqualTo(c1.getKey());
+            assertThat(child.getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4");
+            assertThat(async.getChild(c1.getKey(), "c3").thenCompose(c3 -> async.getValue(c3.getKey())).get().getData())
+                    .isEqualTo("3".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws StoreException {
+        Object root = objectStore.getRoot();
+        for (int i = 0; i < 4; i++) {
+            Object child = root.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+            for (int j = 0; j < 4; j++) {
+                child.addChild("c" + j, null).addChild("leaf", new Value("leaf".getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        Stamp before = objectStore.getKeyValueStore().generateStamp();
+        root.getChild("c0").setValue(new Value("changed".getBytes(StandardCharsets.UTF_8)));
+        root.deleteChild("c3");
+
+        ImmutableObject prefetched = objectStore.prefetch(root.getKey(), null, 2);
+        assertThat(prefetched.getChildNames()).containsOnly("c0", "c1", "c2");
+        assertThat(prefetched.getChild("c0").getValue().getData()).isEqualTo("changed".getBytes(StandardCharsets.UTF_8));
+        assertThat(prefetched.getChild("c1").getChild("c2").getChildNames()).containsOnly("leaf");
+        // below the depth children are read when they are asked for
+        assertThat(prefetched.getChild("c1").getChild("c2").getChild("leaf").getValue().getData()).isEqualTo("leaf".getBytes(StandardCharsets.UTF_8));
+
+        // the prefetched objects are a copy, later changes do not show up
+        root.getChild("c1").setValue(new Value("later".getBytes(StandardCharsets.UTF_8)));
+        root.addChild("c4", null);
+        assertThat(prefetched.getChildNames()).containsOnly("c0", "c1", "c2");
+        assertThat(prefetched.getChild("c1").getValue().getData()).isEqualTo("1".getBytes(StandardCharsets.UTF_8));
+
+        ImmutableObject earlier = objectStore.prefetch(root.getKey(), before, 1);
+        assertThat(earlier.getChildNames()).containsOnly("c0", "c1", "c2", "c3");
+        assertThat(earlier.getChild("c0").getValue().getData()).isEqualTo("0".getBytes(StandardCharsets.UTF_8));
+        assertThat(earlier.getChild("c3").getChildNames()).containsOnly("c0", "c1", "c2", "c3");
+        assertThat(earlier.getChild("c3").getChild("c1").getChild("leaf").getValue().getData()).isEqualTo("leaf".getBytes(StandardCharsets.UTF_8));
+        assertThat(objectStore.prefetch(root.getChild("c4").getKey(), before, 1)).isNull();
+    }
+
+    @Test
+    public void testBulkLoad() throws StoreException {
+        Object root = objectStore.getRoot();
+        root.addChild("existing", null);
+        KeyValueStoreStatistics stats = objectStore.getKeyValueStore().getStatistics();
+        long writes = stats.totalWrites;
+
+        BulkLoader loader = objectStore.beginBulkLoad(root.getKey());
+        int count = 0;
+        for (int i = 0; i < 10; i++) {
+            loader.add(Collections.emptyList(), "c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+            for (int j = 0; j < 10; j++) {
+                loader.add(Collections.singletonList("c" + i), "c" + j, null);
+                loader.add(Arrays.asList("c" + i, "c" + j), "leaf", new Value("leaf".getBytes(StandardCharsets.UTF_8)));
+                // two objects and the value of the leaf
+                count += 3;
+            }
+            count += 2;
+        }
+        loader.add(Collections.singletonList("existing"), "new", null);
+        count++;
+        assertThat(root.getChildNames()).containsOnly("existing");
+        loader.commit();
+        // every new object and every value is written once, plus at most two records for every patch that attaches one
+        assertThat(stats.totalWrites - writes).isLessThanOrEqualTo(count + 2 * 11);
+
+        // a second object store on the same key value store starts without cached objects
+        ObjectStoreImpl fresh = new ObjectStoreImpl();
+        assertThat(fresh.initialize(properties, objectStore.getKeyValueStore())).isTrue();
+        for (ObjectStore store : Arrays.asList(objectStore, fresh)) {
+            Object reread = store.getRoot();
+            assertThat(reread.getChildNames()).hasSize(11);
+            assertThat(reread.getChild("c3").getValue().getData()).isEqualTo("3".getBytes(StandardCharsets.UTF_8));
+            assertThat(reread.getChild("c3").getChildNames()).hasSize(10);
+            assertThat(reread.getChild("c3").getChild("c7").getChild("leaf").getValue().getData()).isEqualTo("leaf".getBytes(StandardCharsets.UTF_8));
+            assertThat(reread.getChild("existing").getChildNames()).containsOnly("new");
+        }
+
+        // loaded objects can be changed like any other
+        Object loaded = root.getChild("c3");
+        Stamp beforeChange = loaded.getStamp();
+        loaded.deleteChild("c0");
+        loaded.getChild("c1").addChild("more", null);
+        assertThat(loaded.getChildNames()).hasSize(9);
+        assertThat(loaded.get(beforeChange).getChildNames()).hasSize(10);
+        assertThat(loaded.getChild("c1").getChildNames()).containsOnly("leaf", "more");
+
+        objectStore.compact(objectStore.getKeyValueStore().calculateSnapshotStamp(Instant.now()));
+        assertThat(root.getChild("c9").getChild("c9").getChild("leaf").getValue().getData()).isEqualTo("leaf".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBulkLoadRollback() throws StoreException {
+        BulkLoader loader = objectStore.beginBulkLoad(objectStore.getRoot().getKey());
+        loader.add(Collections.emptyList(), "c1", null);
+        try {
+            loader.add(Collections.emptyList(), "c1", null);
+            fail("Added the same child twice");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            loader.add(Collections.singletonList("missing"), "c2", null);
+            fail("Added a child to a parent that does not exist");
+        } catch (StoreException e) {
+            // expected
+        }
+        loader.rollback();
+        assertThat(objectStore.getRoot().getChildNames()).isEmpty();
+
+        thrown.expect(IllegalStateException.class);
+        loader.commit();
+    }
+
+    @Test
+    public void testDump() throws StoreException, IOException {
+        Object root = objectStore.getRoot();
+        root.setValue(new Value("root".getBytes(StandardCharsets.UTF_8)));
+        for (int i = 0; i < 5; i++) {
+            Object child = root.addChild("c" + i, new Value(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+            for (int j = 0; j < 5; j++) {
+                child.addChild("c" + j, null).addChild("leaf", new Value(new byte[0]));
+            }
+        }
+        root.getChild("c0").setValue(new Value("changed".getBytes(StandardCharsets.UTF_8)));
+        Stamp stamp = objectStore.getKeyValueStore().generateStamp();
+        // changes after the stamp are not dumped
+        root.deleteChild("c1");
+        root.getChild("c2").setValue(new Value("later".getBytes(StandardCharsets.UTF_8)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(objectStore.exportDump(root.getKey(), stamp, out)).isEqualTo(1 + 5 * 11);
+
+        Properties copyProperties = new Properties();
+        copyProperties.putAll(properties);
+        copyProperties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, temporaryFolder.newFolder().getAbsolutePath());
+        ObjectStore copy = StoreFactory.createObjectStore(copyProperties);
+        assertThat(copy).isNotNull();
+
+        byte[] dump = out.toByteArray();
+        byte[] corrupt = dump.clone();
+        corrupt[corrupt.length / 2] ^= 1;
+        try {
+            copy.importDump(copy.getRoot().getKey(), new ByteArrayInputStream(corrupt));
+            fail("Imported a corrupt dump");
+        } catch (StoreException e) {
+            // expected
+        }
+        assertThat(copy.getRoot().getChildNames()).isEmpty();
+
+        assertThat(copy.importDump(copy.getRoot().getKey(), new ByteArrayInputStream(dump))).isEqualTo(1 + 5 * 11);
+        Object imported = copy.getRoot();
+        assertThat(imported.getValue().getData()).isEqualTo("root".getBytes(StandardCharsets.UTF_8));
+        assertThat(imported.getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4");
+        assertThat(imported.getChild("c0").getValue().getData()).isEqualTo("changed".getBytes(StandardCharsets.UTF_8));
+        assertThat(imported.getChild("c2").getValue().getData()).isEqualTo("2".getBytes(StandardCharsets.UTF_8));
+        assertThat(imported.getChild("c4").getChildNames()).containsOnly("c0", "c1", "c2", "c3", "c4");
+        assertThat(imported.getChild("c4").getChild("c3").getChild("leaf").getValue().isEmpty()).isTrue();
+        assertThat(imported.getChild("c4").getChild("c3").getValue()).isNull();
+    }
 
-}
\ No newline at end of file
+}
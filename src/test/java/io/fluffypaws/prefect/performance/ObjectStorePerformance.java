@@ -20,8 +20,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Collections;
 import java.util.Properties;
 
+import io.fluffypaws.prefect.api.BulkLoader;
 import io.fluffypaws.prefect.api.KeyValueStoreStatistics;
 import io.fluffypaws.prefect.api.Object;
 import io.fluffypaws.prefect.api.ObjectStore;
@@ -37,6 +39,9 @@ public class ObjectStorePerformance {
 
             Properties properties = new Properties();
             properties.setProperty(StoreFactory.STORE_DIRECTORY_KEY, path.toAbsolutePath().toString());
+            if (args.length > 0) {
+                properties.setProperty(StoreFactory.STORE_IMPLEMENTATION, args[0]);
+            }
             ObjectStore store = StoreFactory.createObjectStore(properties);
             if (store == null) {
                 fail("Error initializing store");
@@ -63,6 +68,26 @@ public class ObjectStorePerformance {
             System.out.println("totalWrites:       " + stats.totalWrites);
             System.out.println("totalBytesWritten: " + stats.totalBytesWritten);
             System.out.println("avg bytes/write  : " + stats.totalBytesWritten / stats.totalWrites);
+
+            // the same tree again, through a bulk load
+            Object bulk = root.addChild("bulk", null);
+            long writes = stats.totalWrites;
+            start = Instant.now();
+
+            BulkLoader loader = store.beginBulkLoad(bulk.getKey());
+            for (int i = 0; i < num; i++) {
+                loader.add(Collections.emptyList(), String.valueOf(i), null);
+                for (int j = 0; j < num; j++) {
+                    loader.add(Collections.singletonList(String.valueOf(i)), String.valueOf(j), null);
+                }
+            }
+            loader.commit();
+
+            end = Instant.now();
+            gap = ChronoUnit.MILLIS.between(start, end);
+            avg = (float)gap/(float)(num*num);
+            System.out.println("Bulk load time elapsed: " + gap + " avg(ms): " + avg + " objects/sec: " + 1000.0/avg);
+            System.out.println("totalWrites:       " + (stats.totalWrites - writes));
         } catch (Exception e) {
             e.printStackTrace();
         }